@@ -1,33 +1,104 @@
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Channels;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 /**
  * A robust and efficient HTTP/1.1 server designed for performance and clarity.
  *
  * Features:
- * - Asynchronous request handling via a thread pool.
- * - Implements core HTTP/1.1 with persistent connections.
- * - Efficient content compression (gzip) with content negotiation.
- * - Comprehensive file serving (GET) with content type detection.
- * - File creation/overwrite (POST) with proper handling of request bodies.
+ * - Asynchronous request handling via a thread pool, virtual threads, or non-blocking NIO event loops.
+ * - Implements core HTTP/1.1 with persistent connections and a byte-level request parser.
+ * - Efficient content compression (gzip) with content negotiation, streamed with chunked encoding
+ *   or served from precompressed .gz sidecar files.
+ * - Comprehensive file serving (GET) with content type detection, zero-copy transfers,
+ *   byte-range requests, conditional GETs, watched file metadata, an in-memory cache for small hot files
+ *   and shared memory mappings for mid-sized ones.
+ * - File creation/overwrite (POST) with request bodies streamed to disk as raw bytes, published
+ *   atomically by rename with a configurable fsync policy.
  * - Robust error handling and logging.
  * - Clean, modular design promoting maintainability and extensibility.
  */
@@ -37,8 +108,69 @@ public class Main {
     private static final String DEFAULT_FILE_DIRECTORY = System.getProperty("user.dir");
     private static final int SOCKET_TIMEOUT_MS = 30000;
     private static final int THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors();
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    private static final AtomicInteger liveConnections = new AtomicInteger();
+    private static ExecutorService threadPool;
+    private static final int EVENT_LOOP_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final long IDLE_SWEEP_INTERVAL_MS = 1000;
+    private static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_QUEUED_FRAMES = 4;
+    private static final int MAX_QUEUED_BODY_PIECES = 4;
+    private static final long MAX_QUEUED_BODY_BYTES = 64L * 1024 * 1024;
+    private static final String SIDECAR_SUFFIX = ".gz";
+    private static final ExecutorService sidecarExecutor = Executors.newSingleThreadExecutor();
+    private static final Set<Path> sidecarsInProgress = ConcurrentHashMap.newKeySet();
+    private static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long MAX_CACHED_FILE_BYTES = 1024 * 1024;
+    private static final long GROUP_FSYNC_INTERVAL_MS = 5;
+    private static final int MAX_RANGES = 16;
+    private static final int MAX_METADATA_ENTRIES = 16 * 1024;
+    private static final long MAX_MAPPED_BYTES = 1024L * 1024 * 1024;
+    private static final int HEADER_BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_HEADER_BUFFERS = 1024;
+    private static final long MAX_BATCHED_BYTES = 64 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 512;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final String SERVER_NAME = "dartfrog";
+    private static final int LOG_RING_CAPACITY = 64 * 1024;
+    private static final int LOG_BATCH_CHARS = 64 * 1024;
+    private static final long DEFAULT_ACCESS_LOG_BYTES = 64L * 1024 * 1024;
+    private static final int ACCESS_LOG_FILES = 5;
+    private static final String DEFAULT_LOAD_MIX = "root:2,echo:2,user-agent:2,files-get:3,files-post:1";
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
     private static String fileDirectory;
+    private static String engine = "blocking";
+    private static String executor = "pool";
+    private static String precompressDirectory;
+    private static ResponseCache responseCache;
+    private static final MetadataCache metadataCache = new MetadataCache();
+    private static MappedFileCache mappedFiles;
+    private static final HeaderBufferPool headerBuffers = new HeaderBufferPool();
+    private static final Map<String, Map<String, HttpResponse>> staticResponses = new ConcurrentHashMap<>();
+    private static final HttpResponse NOT_FOUND = new HttpResponse.Builder(404).build().preEncoded();
+    private static final HttpResponse METHOD_NOT_ALLOWED = new HttpResponse.Builder(405).build().preEncoded();
+    private static final MetricsRegistry metrics = new MetricsRegistry();
+    private static final LongAdder acceptedConnections = metrics.counter("dartfrog_connections_accepted_total",
+            "Connections accepted.");
+    private static final LogHistogram parseDurations = metrics.histogram("dartfrog_request_parse_seconds",
+            "Time to parse a request head once it has arrived.");
+    private static final LongAdder fileReadBytes = metrics.counter("dartfrog_file_read_bytes_total",
+            "File bytes selected for GET responses, before compression.");
+    private static final LongAdder fileWrittenBytes = metrics.counter("dartfrog_file_written_bytes_total",
+            "Bytes written to files by uploads.");
+    private static final LogHistogram gzipDurations = metrics.histogram("dartfrog_gzip_seconds",
+            "Time spent gzip-compressing each file, for a response or a sidecar.");
+    private static final LongAdder[] responsesByStatus = new LongAdder[600];
+    private static final Router router = defaultRoutes();
+
+    static {
+        metrics.gauge("dartfrog_connections_open", "Connections currently open.", liveConnections::get);
+    }
+    private static String fsyncPolicy = "none";
+    private static AsyncLog accessLog;
+    private static FsyncGroup fsyncGroup;
 
     /**
      * Entry point for the HTTP server.
@@ -47,10 +179,20 @@ public class Main {
      * for accepting client connections. Utilizes a thread pool for efficient handling
      * of concurrent requests.
      *
-     * @param args Command-line arguments (supports --directory and --port)
+     * @param args Command-line arguments (supports --directory, --port, --engine, --executor, --precompress,
+     *             --cache-bytes, --mmap-threshold and --fsync)
      */
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        long cacheBytes = DEFAULT_CACHE_BYTES;
+        long mmapThreshold = 0;
+        boolean loadgen = false;
+        int loadConnections = 16;
+        long loadRate = 1000;
+        long loadSeconds = 10;
+        String loadMix = DEFAULT_LOAD_MIX;
+        String accessLogPath = null;
+        long accessLogBytes = DEFAULT_ACCESS_LOG_BYTES;
         fileDirectory = DEFAULT_FILE_DIRECTORY;
 
         // Parse command-line arguments
@@ -80,31 +222,234 @@ public class Main {
                         System.exit(1);
                     }
                     break;
+                case "--engine":
+                    if (i + 1 < args.length && (args[i + 1].equals("blocking") || args[i + 1].equals("nio"))) {
+                        engine = args[++i];
+                    } else {
+                        System.err.println("Error: --engine option requires 'blocking' or 'nio'.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--executor":
+                    if (i + 1 < args.length && (args[i + 1].equals("pool") || args[i + 1].equals("virtual"))) {
+                        executor = args[++i];
+                    } else {
+                        System.err.println("Error: --executor option requires 'pool' or 'virtual'.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--precompress":
+                    if (i + 1 < args.length) {
+                        precompressDirectory = args[++i];
+                    } else {
+                        System.err.println("Error: --precompress option requires a path.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--cache-bytes":
+                    if (i + 1 < args.length) {
+                        try {
+                            cacheBytes = Long.parseLong(args[++i]);
+                            if (cacheBytes < 0) {
+                                throw new NumberFormatException("Negative cache size.");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Invalid cache size: " + args[i]);
+                            System.exit(1);
+                        }
+                    } else {
+                        System.err.println("Error: --cache-bytes option requires a number.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--mmap-threshold":
+                    if (i + 1 < args.length) {
+                        try {
+                            mmapThreshold = Long.parseLong(args[++i]);
+                            if (mmapThreshold < 0 || mmapThreshold > Integer.MAX_VALUE) {
+                                throw new NumberFormatException("Threshold out of range.");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Invalid mmap threshold: " + args[i]);
+                            System.exit(1);
+                        }
+                    } else {
+                        System.err.println("Error: --mmap-threshold option requires a number.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--fsync":
+                    if (i + 1 < args.length && List.of("none", "file", "group").contains(args[i + 1])) {
+                        fsyncPolicy = args[++i];
+                    } else {
+                        System.err.println("Error: --fsync option requires 'none', 'file' or 'group'.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--log-level":
+                    if (i + 1 < args.length && List.of("error", "warn", "info", "debug").contains(args[i + 1])) {
+                        Log.setLevel(LogLevel.valueOf(args[++i].toUpperCase(Locale.ROOT)));
+                    } else {
+                        System.err.println("Error: --log-level option requires 'error', 'warn', 'info' or 'debug'.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--access-log":
+                    if (i + 1 < args.length) {
+                        accessLogPath = args[++i];
+                    } else {
+                        System.err.println("Error: --access-log option requires a path.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--access-log-bytes":
+                    if (i + 1 < args.length) {
+                        try {
+                            accessLogBytes = Long.parseLong(args[++i]);
+                            if (accessLogBytes < 1) {
+                                throw new NumberFormatException("Non-positive size.");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Invalid access log size: " + args[i]);
+                            System.exit(1);
+                        }
+                    } else {
+                        System.err.println("Error: --access-log-bytes option requires a number.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--loadgen":
+                    loadgen = true;
+                    break;
+                case "--connections":
+                case "--rate":
+                case "--duration":
+                    if (i + 1 < args.length) {
+                        try {
+                            long value = Long.parseLong(args[i + 1]);
+                            if (value < 1 || (args[i].equals("--connections") && value > 10_000)) {
+                                throw new NumberFormatException("Out of range.");
+                            }
+                            switch (args[i]) {
+                                case "--connections" -> loadConnections = (int) value;
+                                case "--rate" -> loadRate = value;
+                                default -> loadSeconds = value;
+                            }
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.err.println("Error: Invalid " + args[i].substring(2) + ": " + args[i + 1]);
+                            System.exit(1);
+                        }
+                    } else {
+                        System.err.println("Error: " + args[i] + " option requires a number.");
+                        System.exit(1);
+                    }
+                    break;
+                case "--mix":
+                    if (i + 1 < args.length) {
+                        loadMix = args[++i];
+                    } else {
+                        System.err.println("Error: --mix option requires a list of kind:weight pairs.");
+                        System.exit(1);
+                    }
+                    break;
                 default:
-                    System.err.println("Usage: java Main [--directory <path>] [--port <number>]");
+                    System.err.println("Usage: java Main [--directory <path>] [--port <number>] [--engine blocking|nio] [--executor pool|virtual] [--precompress <path>] [--cache-bytes <number>] [--mmap-threshold <number>] [--fsync none|file|group] [--log-level error|warn|info|debug] [--access-log <path>] [--access-log-bytes <number>]");
+                    System.err.println("       java Main --loadgen [--port <number>] [--connections <number>] [--rate <requests/s>] [--duration <seconds>] [--mix <kind:weight,...>]");
                     System.exit(1);
             }
         }
 
+        if (loadgen) {
+            try {
+                if (loadRate < loadConnections) {
+                    throw new IllegalArgumentException("--rate must be at least --connections.");
+                }
+                new LoadGenerator("localhost", port, loadConnections, loadRate, loadSeconds, loadMix).run();
+                System.exit(0);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+            } catch (IOException e) {
+                System.err.println("Error connecting to localhost:" + port + ": " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                System.exit(1);
+            }
+        }
+
+        if (precompressDirectory != null) {
+            try {
+                int built = precompressTree(Paths.get(precompressDirectory));
+                System.out.println("Built " + built + " gzip sidecar(s) under: " + precompressDirectory);
+                System.exit(0);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Error precompressing files: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
         // Validate and log the configured file directory
         Path dirPath = Paths.get(fileDirectory);
         if (!Files.exists(dirPath) || !Files.isDirectory(dirPath)) {
-            System.err.println("Error: Specified directory does not exist or is not a directory: " + fileDirectory);
-            System.err.println("Using default directory: " + DEFAULT_FILE_DIRECTORY);
+            Log.warn("Specified directory does not exist or is not a directory: " + fileDirectory);
+            Log.warn("Using default directory: " + DEFAULT_FILE_DIRECTORY);
             fileDirectory = DEFAULT_FILE_DIRECTORY;
         }
-        System.out.println("Serving files from: " + fileDirectory);
-        System.out.println("Server listening on port: " + port);
+        Log.info("Serving files from: " + fileDirectory);
+        Log.info("Server listening on port: " + port);
+        if (cacheBytes > 0) {
+            responseCache = new ResponseCache(cacheBytes);
+            Log.info("Response cache: " + cacheBytes + " bytes");
+        }
+        if (mmapThreshold > 0) {
+            mappedFiles = new MappedFileCache(mmapThreshold);
+            Log.info("Memory-mapped files: up to " + mmapThreshold + " bytes");
+        }
+        if (fsyncPolicy.equals("group")) {
+            fsyncGroup = new FsyncGroup();
+        }
+        Log.info("Upload fsync policy: " + fsyncPolicy);
+        if (accessLogPath != null) {
+            try {
+                accessLog = AsyncLog.start("access", new RotatingFile(Paths.get(accessLogPath), accessLogBytes));
+                Log.info("Access log: " + accessLogPath + " (rotated at " + accessLogBytes + " bytes)");
+            } catch (IOException e) {
+                Log.error("Error opening access log: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // Constant answers for health checks and the like skip routing and response encoding
+        registerStaticResponse("GET", "/", new HttpResponse.Builder(200).build());
+
+        if (engine.equals("nio")) {
+            runNioServer(port);
+            return;
+        }
+
+        // Virtual threads make a connection blocked reading its socket into RequestReader's buffer cheap, so each gets its own thread
+        threadPool = executor.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        Log.info("Connection executor: " + executor);
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Accepting through a channel gives each socket a SocketChannel for zero-copy file transfers
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection from: " + clientSocket.getInetAddress());
+                Socket clientSocket = serverChannel.accept().socket();
+                acceptedConnections.increment();
+                int live = liveConnections.incrementAndGet();
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Accepted connection from: " + clientSocket.getInetAddress().getHostAddress()
+                            + " (live connections: " + live + ")");
+                }
                 clientSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
                 threadPool.submit(() -> handleClient(clientSocket)); // Delegate to thread pool
             }
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
+            Log.error("Error starting server: " + e.getMessage());
             threadPool.shutdownNow();
             System.exit(1);
         }
@@ -120,10 +465,10 @@ public class Main {
      * @param clientSocket The socket connected to the client.
      */
     private static void handleClient(Socket clientSocket) {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())
-        ) {
+        String remote = clientSocket.getInetAddress().getHostAddress();
+        try (InputStream socketIn = clientSocket.getInputStream()) {
+            RequestReader in = new RequestReader(socketIn);
+            ResponseBatch responses = new ResponseBatch(clientSocket.getChannel());
             boolean keepAlive = true;
             while (keepAlive) {
                 try {
@@ -132,101 +477,171 @@ public class Main {
                         keepAlive = false;
                         break;
                     }
+                    long started = System.nanoTime();
                     HttpResponse response = routeRequest(request);
-                    sendResponse(response, out, request.headers().get("accept-encoding"));
-                    keepAlive = request.headers().getOrDefault("connection", "keep-alive")
-                            .equalsIgnoreCase("keep-alive") && response.statusCode() != 400 && response.statusCode() != 404 && response.statusCode() != 500;
+                    logAccess(remote, request, response, started);
+                    responses.add(response);
+                    keepAlive = shouldKeepAlive(request, response);
+                    if (keepAlive && request.body() != null) {
+                        // Discard any body the handler left unread so the next request starts at its request line
+                        request.body().transferTo(OutputStream.nullOutputStream());
+                    }
+                    if (!keepAlive || !in.hasBufferedHead()) {
+                        // Pipelined requests already read are answered first, then all of their responses go out together
+                        responses.flush();
+                    }
                 } catch (SocketTimeoutException e) {
-                    System.out.println("Connection timed out.");
+                    Log.debug("Connection timed out.");
                     keepAlive = false;
                 } catch (SocketException e) {
-                    System.out.println("Client disconnected unexpectedly.");
+                    Log.debug("Client disconnected unexpectedly.");
                     keepAlive = false;
-                } catch (IOException e) {
-                    System.err.println("Error processing request: " + e.getMessage());
-                    HttpResponse errorResponse = new HttpResponse.Builder(500)
-                            .withBody("Internal Server Error".getBytes())
-                            .withHeader("Content-Type", "text/plain")
-                            .build();
-                    sendResponse(errorResponse, out, null);
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Error processing request: " + e);
+                    responses.add(internalServerError());
+                    responses.flush();
                     keepAlive = false;
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
+            Log.error("Error handling client: " + e.getMessage());
         } finally {
+            int remaining = liveConnections.decrementAndGet();
             try {
                 clientSocket.close();
-                System.out.println("Closed connection with: " + clientSocket.getInetAddress());
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Closed connection with: " + remote + " (live connections: " + remaining + ")");
+                }
             } catch (IOException e) {
-                System.err.println("Error closing socket: " + e.getMessage());
+                Log.error("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the server on non-blocking NIO event loops.
+     *
+     * The main thread accepts connections and hands them round-robin to one event loop
+     * per core. Each loop multiplexes its connections over a single Selector, so an idle
+     * keep-alive socket costs a key registration rather than a parked worker thread.
+     *
+     * @param port The port to listen on.
+     */
+    private static void runNioServer(int port) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            EventLoop[] eventLoops = new EventLoop[EVENT_LOOP_COUNT];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop();
+                new Thread(eventLoops[i], "event-loop-" + i).start();
+            }
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                acceptedConnections.increment();
+                int live = liveConnections.incrementAndGet();
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Accepted connection from: " + clientChannel.socket().getInetAddress().getHostAddress()
+                            + " (live connections: " + live + ")");
+                }
+                eventLoops[next].register(clientChannel);
+                next = (next + 1) % eventLoops.length;
             }
+        } catch (IOException e) {
+            Log.error("Error starting server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Decides whether a connection should stay open after a response.
+     *
+     * @param request  The request that was served.
+     * @param response The response that was sent.
+     * @return True if the connection can be reused for another request.
+     */
+    private static boolean shouldKeepAlive(HttpRequest request, HttpResponse response) {
+        return request.headers().getOrDefault("connection", "keep-alive").equalsIgnoreCase("keep-alive")
+                && response.statusCode() != 400 && response.statusCode() != 404 && response.statusCode() != 500;
+    }
+
+    /**
+     * Queues a request for the access log, if one is configured.
+     *
+     * @param remote   The client's address.
+     * @param request  The request.
+     * @param response Its response; streamed bodies of unknown length are logged as -1 bytes.
+     * @param started  The System.nanoTime() at which routing began.
+     */
+    private static void logAccess(String remote, HttpRequest request, HttpResponse response, long started) {
+        if (accessLog != null) {
+            accessLog.append(new AccessEntry(System.currentTimeMillis(), remote, request.method(), request.path(),
+                    response.statusCode(), response.contentLength(), System.nanoTime() - started));
         }
     }
 
+    /**
+     * Builds the response sent when a request fails with an I/O error.
+     *
+     * @return A 500 Internal Server Error response.
+     */
+    private static HttpResponse internalServerError() {
+        return new HttpResponse.Builder(500)
+                .withBody("Internal Server Error".getBytes())
+                .withHeader("Content-Type", "text/plain")
+                .build();
+    }
+
     /**
      * Parses an HTTP request from the input stream.
      *
      * Reads the request line and subsequent headers, storing them in a structured
      * HttpRequest object. Handles potential EOF and malformed requests.
      *
-     * @param in The BufferedReader associated with the client socket.
+     * @param in The RequestReader associated with the client socket.
      * @return An HttpRequest object if parsing is successful, null if the connection is closed.
      * @throws IOException If an I/O error occurs during reading.
      */
-    private static HttpRequest parseRequest(BufferedReader in) throws IOException {
-        String requestLine = in.readLine();
-        if (requestLine == null) {
-            return null; // Client closed connection
+    private static HttpRequest parseRequest(RequestReader in) throws IOException {
+        HttpRequest head = in.readHead();
+        if (head == null) {
+            return null; // Client closed connection or sent a malformed request
         }
-        System.out.println("Request Line: " + requestLine);
-
-        String[] parts = requestLine.split(" ");
-        if (parts.length != 3) {
-            return null; // Malformed request line
-        }
-        String method = parts[0].toUpperCase(Locale.ROOT);
-        String path = parts[1];
-
-        Map<String, String> headers = new HashMap<>();
-        String headerLine;
-        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-            int colonIndex = headerLine.indexOf(':');
-            if (colonIndex > 0) {
-                String name = headerLine.substring(0, colonIndex).trim().toLowerCase(Locale.ROOT);
-                String value = headerLine.substring(colonIndex + 1).trim();
-                headers.put(name, value);
-            }
+        if (Log.isDebugEnabled()) {
+            Log.debug("Request Line: " + head.method() + " " + head.path());
         }
+        Map<String, String> headers = head.headers();
 
-        // Handle request body for POST requests
-        byte[] body = null;
-        if (method.equals("POST")) {
+        // Handle request body for POST requests; the handler pulls it straight from the socket
+        InputStream body = null;
+        if (head.method().equals("POST")) {
             String contentLengthStr = headers.get("content-length");
-            if (contentLengthStr != null) {
+            if (headers.containsKey("transfer-encoding")) {
+                // Transfer-Encoding overrides Content-Length; any coding but chunked leaves the body unreadable
+                if (HttpParser.isChunked(headers)) {
+                    body = in.chunkedBodyStream();
+                }
+            } else if (contentLengthStr != null) {
                 try {
-                    int contentLength = Integer.parseInt(contentLengthStr);
-                    char[] bodyChars = new char[contentLength];
-                    int bytesRead = in.read(bodyChars, 0, contentLength);
-                    if (bytesRead == contentLength) {
-                        body = new String(bodyChars).getBytes();
-                    } else {
-                        System.err.println("Error reading full request body.");
+                    long contentLength = Long.parseLong(contentLengthStr);
+                    if (contentLength < 0) {
+                        throw new NumberFormatException("Negative length.");
                     }
+                    body = in.bodyStream(contentLength);
                 } catch (NumberFormatException e) {
-                    System.err.println("Invalid Content-Length: " + contentLengthStr);
+                    Log.warn("Invalid Content-Length: " + contentLengthStr);
                 }
             }
         }
 
-        return new HttpRequest(method, path, headers, body);
+        return new HttpRequest(head.method(), head.path(), headers, body);
     }
 
     /**
      * Routes the incoming HTTP request to the appropriate handler.
      *
-     * Based on the request path, this method dispatches the request to specific
-     * handler functions for different endpoints.
+     * Constant responses registered with registerStaticResponse are answered first; everything
+     * else is dispatched through the router, which answers 404 and 405 itself.
      *
      * @param request The HttpRequest object containing the parsed request.
      * @return An HttpResponse object generated by the handler.
@@ -236,31 +651,93 @@ public class Main {
         String path = request.path();
         String method = request.method();
 
-        System.out.println("Routing: " + method + " " + path);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Routing: " + method + " " + path);
+        }
 
-        if (path.equals("/")) {
-            return new HttpResponse.Builder(200).build();
-        } else if (path.startsWith("/echo/")) {
-            return handleEcho(path);
-        } else if (path.equals("/user-agent")) {
-            return handleUserAgent(request.headers().get("user-agent"));
-        } else if (path.startsWith("/files/")) {
-            return handleFiles(path.substring("/files/".length()), method, request.headers(), request.body());
-        } else {
-            return new HttpResponse.Builder(404).build();
+        RouteRequestEvent event = new RouteRequestEvent();
+        event.begin();
+        Map<String, HttpResponse> fixed = staticResponses.get(method);
+        HttpResponse response = fixed != null ? fixed.get(path) : null;
+        if (response == null) {
+            response = router.route(request);
+        }
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.path = path;
+            event.status = response.statusCode();
+            event.bytes = response.contentLength();
+            event.encoding = response.encoding();
+            event.commit();
+        }
+        return response;
+    }
+
+    /**
+     * Parses a complete request head, recording its duration and a flight recorder event.
+     *
+     * @return The request without a body, or null if the head is malformed.
+     */
+    private static HttpRequest parseHead(byte[] buffer, int start, int end) {
+        ParseRequestEvent event = new ParseRequestEvent();
+        event.begin();
+        long started = System.nanoTime();
+        HttpRequest head = HttpParser.parseHead(buffer, start, end);
+        parseDurations.record(System.nanoTime() - started);
+        if (event.shouldCommit()) {
+            if (head != null) {
+                event.method = head.method();
+                event.path = head.path();
+            }
+            event.bytes = end - start;
+            event.commit();
         }
+        return head;
+    }
+
+    /**
+     * Builds the router for the server's own endpoints.
+     */
+    private static Router defaultRoutes() {
+        Router routes = new Router();
+        routes.add("GET", "/", (request, params) -> new HttpResponse.Builder(200).build());
+        routes.add("GET", "/echo/{*text}", (request, params) -> handleEcho(params.get("text")));
+        // A catch-all needs at least one character; the empty echo is answered as it always was
+        routes.add("GET", "/echo/", (request, params) -> handleEcho(""));
+        routes.add("GET", "/user-agent", (request, params) -> handleUserAgent(request.headers().get("user-agent")));
+        routes.add("GET", "/metrics", (request, params) -> new HttpResponse.Builder(200)
+                .withHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .withBody(metrics.render())
+                .build());
+        RouteHandler files = (request, params) ->
+                handleFiles(params.get("name"), request.method(), request.headers(), request.body());
+        routes.add("GET", "/files/{*name}", files);
+        routes.add("POST", "/files/{*name}", files);
+        return routes;
+    }
+
+    /**
+     * Registers a constant response for one method and path. It is encoded once, here, and
+     * answered before routing without calling a handler. Meant to be called at startup,
+     * before the server accepts connections.
+     *
+     * @param method   The request method, e.g. "GET".
+     * @param path     The exact request path.
+     * @param response The response to serve; its body must be in memory.
+     */
+    private static void registerStaticResponse(String method, String path, HttpResponse response) {
+        staticResponses.computeIfAbsent(method, m -> new ConcurrentHashMap<>()).put(path, response.preEncoded());
     }
 
     /**
      * Handles the /echo/ endpoint.
      *
-     * Extracts the text after /echo/ and returns it as a plain text response.
+     * Returns the text after /echo/ as a plain text response.
      *
-     * @param path The request path.
+     * @param echoText The rest of the request path.
      * @return An HttpResponse object containing the echoed text.
      */
-    private static HttpResponse handleEcho(String path) {
-        String echoText = path.substring("/echo/".length());
+    private static HttpResponse handleEcho(String echoText) {
         return new HttpResponse.Builder(200)
                 .withBody(echoText.getBytes())
                 .withHeader("Content-Type", "text/plain")
@@ -303,138 +780,4536 @@ public class Main {
      * @return An HttpResponse object containing the file content or status.
      * @throws IOException If an I/O error occurs during file operations.
      */
-    private static HttpResponse handleFiles(String fileName, String method, Map<String, String> headers, byte[] body) throws IOException {
-        Path filePath = Paths.get(fileDirectory, fileName);
-        File file = filePath.toFile();
+    private static HttpResponse handleFiles(String fileName, String method, Map<String, String> headers, InputStream body) throws IOException {
+        // One spelling per file, so the metadata and response caches agree on their keys
+        Path filePath;
+        try {
+            filePath = Paths.get(fileDirectory, fileName).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            return new HttpResponse.Builder(400).build();
+        }
 
         switch (method) {
             case "GET":
-                if (file.exists() && file.isFile()) {
-                    byte[] fileContent = Files.readAllBytes(filePath);
-                    String contentType = Files.probeContentType(filePath);
-                    if (contentType == null) {
-                        contentType = "application/octet-stream";
+                FileMetadata metadata = metadataCache.get(filePath);
+                if (metadata != null) {
+                    boolean gzip = shouldCompress(headers.get("accept-encoding"));
+                    String entityTag = gzip ? metadata.gzipEntityTag() : metadata.entityTag();
+                    if (isNotModified(headers, entityTag, metadata)) {
+                        // The client's copy is current: cached metadata was all this request needed
+                        return new HttpResponse.Builder(304)
+                                .withHeader("ETag", entityTag)
+                                .withHeader("Last-Modified", metadata.lastModified())
+                                .withHeader("Vary", "Accept-Encoding")
+                                .build();
+                    }
+                    String range = headers.get("range");
+                    if (range != null && ifRangeMatches(headers.get("if-range"), metadata)) {
+                        HttpResponse partial = handleRange(metadata, range);
+                        if (partial != null) {
+                            return partial;
+                        }
                     }
                     HttpResponse.Builder builder = new HttpResponse.Builder(200)
-                            .withBody(fileContent)
-                            .withHeader("Content-Type", contentType);
-                    if (shouldCompress(headers.get("accept-encoding"))) {
-                        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                             GZIPOutputStream gzipOS = new GZIPOutputStream(bos)) {
-                            gzipOS.write(fileContent);
-                            builder.withBody(bos.toByteArray())
-                                    .withHeader("Content-Encoding", "gzip");
+                            .withHeader("Content-Type", metadata.contentType())
+                            .withHeader("Accept-Ranges", "bytes")
+                            .withHeader("ETag", entityTag)
+                            .withHeader("Last-Modified", metadata.lastModified())
+                            .withHeader("Vary", "Accept-Encoding");
+                    if (responseCache != null && metadata.size() <= responseCache.maxEntryBytes()) {
+                        // Small files are kept in memory, raw and gzipped, keyed by their current mtime and size
+                        builder.withBody(loadCachedBody(metadata, gzip));
+                    } else if (!gzip) {
+                        // Uncompressed bodies are served from a shared mapping or streamed straight from disk
+                        withFileBody(builder, metadata);
+                    } else {
+                        FileMetadata sidecar = findFreshSidecar(metadata);
+                        if (sidecar != null) {
+                            // A precompressed sibling goes out through the same zero-copy paths
+                            withFileBody(builder, sidecar);
+                        } else {
+                            // Compressed bodies are produced chunk by chunk while sending
+                            builder.withStream(new GzipFileSource(filePath));
                         }
                     }
+                    if (gzip) {
+                        builder.withHeader("Content-Encoding", "gzip");
+                    }
+                    fileReadBytes.add(metadata.size());
                     return builder.build();
                 } else {
-                    return new HttpResponse.Builder(404).build();
+                    return NOT_FOUND;
                 }
             case "POST":
                 if (body != null) {
-                    Files.createDirectories(filePath.getParent());
-                    Files.write(filePath, body, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                    try {
+                        writeFileAtomically(filePath, body);
+                    } catch (EOFException | ProtocolException e) {
+                        Log.warn("Error reading full request body: " + e.getMessage());
+                        return new HttpResponse.Builder(400).build();
+                    }
+                    metadataCache.invalidate(filePath);
+                    if (mappedFiles != null) {
+                        mappedFiles.invalidate(filePath);
+                    }
+                    if (responseCache != null) {
+                        responseCache.invalidate(filePath);
+                    }
                     return new HttpResponse.Builder(201).build();
                 } else {
                     return new HttpResponse.Builder(400).build();
                 }
             default:
-                return new HttpResponse.Builder(405).build();
+                return METHOD_NOT_ALLOWED;
         }
     }
 
     /**
-     * Sends the HTTP response to the client.
+     * Attaches a whole file as the response body: a view of its shared mapping when it is under
+     * --mmap-threshold, otherwise a FileRegion for transferTo.
+     *
+     * @param builder  The response being built.
+     * @param metadata The file's current metadata.
+     * @return The builder.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private static HttpResponse.Builder withFileBody(HttpResponse.Builder builder, FileMetadata metadata) throws IOException {
+        if (mappedFiles != null && metadata.size() <= mappedFiles.threshold()) {
+            return builder.withBuffer(mappedFiles.map(metadata));
+        }
+        return builder.withFile(new FileRegion(metadata.path(), 0, metadata.size()));
+    }
+
+    /**
+     * Derives a strong entity tag for one encoding of a file from its identity, mtime and size.
      *
-     * Writes the status line, headers, and body of the HttpResponse to the output stream.
-     * Handles content compression based on the Accept-Encoding header.
+     * The tag changes whenever the file is replaced or modified, without reading its content.
+     * The gzip representation gets its own tag, as strong validators must be per representation.
      *
-     * @param response        The HttpResponse object to send.
-     * @param out             The OutputStream associated with the client socket.
-     * @param acceptEncoding  The Accept-Encoding header from the client request.
-     * @throws IOException If an I/O error occurs during writing.
+     * @param attributes The file's current attributes.
+     * @param gzip       Whether the tag is for the gzip encoding.
+     * @return The quoted entity tag.
      */
-    private static void sendResponse(HttpResponse response, OutputStream out, String acceptEncoding) throws IOException {
-        StringBuilder responseHeader = new StringBuilder();
-        responseHeader.append("HTTP/1.1 ").append(response.statusCode()).append(" ").append(getStatusMessage(response.statusCode())).append("\r\n");
-        for (Map.Entry<String, String> header : response.headers().entrySet()) {
-            responseHeader.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    private static String entityTag(BasicFileAttributes attributes, boolean gzip) {
+        StringBuilder tag = new StringBuilder("\"");
+        Object fileKey = attributes.fileKey();
+        if (fileKey != null) {
+            tag.append(Integer.toHexString(fileKey.hashCode())).append('-');
         }
-        responseHeader.append("Content-Length: ").append(response.body() != null ? response.body().length : 0).append("\r\n");
-        if (acceptEncoding != null && acceptEncoding.contains("gzip") && response.headers().containsKey("Content-Encoding") && response.headers().get("Content-Encoding").equals("gzip")) {
-            // No need to add Content-Length again if it's already set for compressed data
+        tag.append(Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS)))
+                .append('-').append(Long.toHexString(attributes.size()));
+        if (gzip) {
+            tag.append("-gz");
         }
-        responseHeader.append("\r\n");
+        return tag.append('"').toString();
+    }
 
-        out.write(responseHeader.toString().getBytes());
-        if (response.body() != null) {
-            out.write(response.body());
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when no If-None-Match is present.
+     *
+     * @param headers   The request headers.
+     * @param entityTag The entity tag of the representation that would be sent.
+     * @param metadata  The file's current metadata.
+     * @return True if a 304 Not Modified should be sent instead of the file.
+     */
+    private static boolean isNotModified(Map<String, String> headers, String entityTag, FileMetadata metadata) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2); // If-None-Match uses weak comparison
+                }
+                if (candidate.equals(entityTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                Instant since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim()));
+                return !metadata.lastModifiedTime().toInstant().truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+            } catch (DateTimeParseException e) {
+                return false; // An invalid date is ignored
+            }
         }
-        out.flush();
+        return false;
     }
 
     /**
-     * Determines if the server should compress the response based on the Accept-Encoding header.
+     * Evaluates an If-Range precondition against the identity representation.
      *
-     * @param acceptEncoding The Accept-Encoding header value.
-     * @return True if gzip compression is acceptable by the client, false otherwise.
+     * An entity tag must match strongly; a date must equal Last-Modified exactly. Anything else
+     * gets the full file, which is always a correct answer to If-Range.
+     *
+     * @param ifRange  The If-Range header value, or null if absent.
+     * @param metadata The file's current metadata.
+     * @return True if the Range header should be honored.
      */
-    private static boolean shouldCompress(String acceptEncoding) {
-        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    private static boolean ifRangeMatches(String ifRange, FileMetadata metadata) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(metadata.entityTag());
+        }
+        return ifRange.equals(metadata.lastModified());
     }
 
     /**
-     * Returns the standard HTTP status message for a given status code.
-     *
-     * @param statusCode The HTTP status code.
-     * @return The corresponding status message.
+     * Formats a file time as an IMF-fixdate, truncated to whole seconds.
      */
-    private static String getStatusMessage(int statusCode) {
-        return switch (statusCode) {
-            case 200 -> "OK";
-            case 201 -> "Created";
-            case 400 -> "Bad Request";
-            case 404 -> "Not Found";
-            case 405 -> "Method Not Allowed";
-            case 500 -> "Internal Server Error";
-            default -> "Unknown Status";
-        };
+    private static String httpDate(FileTime time) {
+        return HTTP_DATE.format(time.toInstant().truncatedTo(ChronoUnit.SECONDS));
     }
 
     /**
-     * Represents an HTTP request.
+     * Builds a 206 or 416 response for a Range request on a file.
+     *
+     * Ranges are always served from the identity encoding. They still carry the 200's
+     * Vary: Accept-Encoding, so caches keep them apart from the gzip representation. A single
+     * range goes out as a FileRegion through transferTo; several ranges become a
+     * multipart/byteranges body read from the file with positional reads.
+     *
+     * @param metadata    The requested file's current metadata.
+     * @param rangeHeader The Range header value.
+     * @return The partial response, or null if the header should be ignored and the full file sent.
      */
-    private record HttpRequest(String method, String path, Map<String, String> headers, byte[] body) {
+    private static HttpResponse handleRange(FileMetadata metadata, String rangeHeader) {
+        long size = metadata.size();
+        List<ByteRange> ranges = parseRanges(rangeHeader, size);
+        if (ranges == null) {
+            return null;
+        }
+        if (ranges.isEmpty()) {
+            return new HttpResponse.Builder(416)
+                    .withHeader("Content-Range", "bytes */" + size)
+                    .withHeader("Vary", "Accept-Encoding")
+                    .build();
+        }
+        HttpResponse.Builder builder = new HttpResponse.Builder(206)
+                .withHeader("Accept-Ranges", "bytes")
+                .withHeader("ETag", metadata.entityTag())
+                .withHeader("Last-Modified", metadata.lastModified())
+                .withHeader("Vary", "Accept-Encoding");
+        fileReadBytes.add(ranges.stream().mapToLong(ByteRange::length).sum());
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            return builder.withHeader("Content-Type", metadata.contentType())
+                    .withHeader("Content-Range", range.contentRange(size))
+                    .withFile(new FileRegion(metadata.path(), range.first(), range.length()))
+                    .build();
+        }
+        String boundary = "dartfrog-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        MultipartRangeSource multipart = new MultipartRangeSource(metadata.path(), metadata.contentType(), ranges,
+                size, boundary);
+        return builder.withHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .withStream(multipart, multipart.length())
+                .build();
     }
 
     /**
-     * Represents an HTTP response.
+     * Parses a bytes Range header against a file size.
+     *
+     * @param rangeHeader The Range header value.
+     * @param size        The file's size.
+     * @return The satisfiable ranges in request order (empty if none are), or null if the header
+     *         is malformed, uses another unit, or asks for more than MAX_RANGES ranges.
      */
-    private record HttpResponse(int statusCode, Map<String, String> headers, byte[] body) {
-        /**
-         * Builder class for constructing HttpResponse objects with a fluent API.
-         */
-        public static class Builder {
-            private final int statusCode;
-            private final Map<String, String> headers = new HashMap<>();
-            private byte[] body;
+    private static List<ByteRange> parseRanges(String rangeHeader, long size) {
+        if (!rangeHeader.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String firstText = spec.substring(0, dash).trim();
+                String lastText = spec.substring(dash + 1).trim();
+                if (firstText.isEmpty()) {
+                    long suffixLength = parseRangeNumber(lastText);
+                    if (suffixLength > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+                    }
+                } else {
+                    long first = parseRangeNumber(firstText);
+                    long last = lastText.isEmpty() ? Long.MAX_VALUE : parseRangeNumber(lastText);
+                    if (last < first) {
+                        return null;
+                    }
+                    if (first < size) {
+                        ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
 
-            public Builder(int statusCode) {
-                this.statusCode = statusCode;
+    /**
+     * Parses a Range bound, which is plain decimal digits; Long.parseLong alone would also take a
+     * sign.
+     *
+     * @throws NumberFormatException If the text is not all digits or does not fit in a long.
+     */
+    private static long parseRangeNumber(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Not a range bound: " + text);
             }
+        }
+        return Long.parseLong(text);
+    }
 
-            public Builder withHeader(String name, String value) {
-                this.headers.put(name, value);
-                return this;
+    /**
+     * Replaces a file with the request body so that readers see either the old or the new content.
+     *
+     * The body is written to a temporary file in the target directory and renamed over the
+     * target with ATOMIC_MOVE. Durability follows the --fsync policy: "file" forces the data
+     * and the directory entry for every upload, "group" forces the data and hands the directory
+     * to the FsyncGroup so concurrent uploads share its sync, and "none" leaves it to the OS.
+     *
+     * @param filePath The file to create or replace.
+     * @param body     The request body.
+     * @throws EOFException      If the body ends early; the target is left untouched.
+     * @throws ProtocolException If a chunked body is malformed; the target is left untouched.
+     * @throws IOException       If writing, syncing or renaming fails.
+     */
+    private static void writeFileAtomically(Path filePath, InputStream body) throws IOException {
+        Path directory = filePath.getParent();
+        Files.createDirectories(directory);
+        FileWriteEvent event = new FileWriteEvent();
+        event.begin();
+        Path temp = createUploadFile(filePath);
+        long written;
+        try {
+            try (FileChannel fileChannel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written = copyBody(body, fileChannel);
+                if (!fsyncPolicy.equals("none")) {
+                    fileChannel.force(false);
+                }
             }
+            Files.move(temp, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (fsyncPolicy.equals("file")) {
+                syncDirectory(directory);
+            } else if (fsyncPolicy.equals("group")) {
+                fsyncGroup.syncDirectory(directory);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (event.shouldCommit()) {
+            event.path = filePath.toString();
+            event.bytes = written;
+            event.commit();
+        }
+    }
 
-            public Builder withBody(byte[] body) {
+    /**
+     * Creates the empty temporary file an upload is written to before it replaces the target.
+     *
+     * Files.createTempFile would make it owner-only, and the rename would carry that mode over to
+     * the target. Instead the file gets the target's permissions when the target exists, and the
+     * umask default for new files otherwise.
+     *
+     * @param filePath The file the upload will replace.
+     * @return The new file, next to the target under a random hidden name.
+     * @throws IOException If the file cannot be created.
+     */
+    private static Path createUploadFile(Path filePath) throws IOException {
+        while (true) {
+            Path temp = filePath.resolveSibling("." + filePath.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".upload");
+            try {
+                Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                if (temp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(filePath));
+                }
+            } catch (NoSuchFileException e) {
+                // A new file keeps the umask default
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return temp;
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk so a completed rename survives a crash.
+     *
+     * @param directory The directory to sync.
+     * @throws IOException If the directory cannot be opened or synced.
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        }
+    }
+
+    /**
+     * Copies a request body to a file in fixed-size chunks, so uploads of any size use constant memory.
+     *
+     * @param body   The request body.
+     * @param target The channel to write to.
+     * @return The number of bytes copied.
+     * @throws EOFException If the client closes the connection before the declared length arrives.
+     * @throws IOException  If reading or writing fails.
+     */
+    private static long copyBody(InputStream body, WritableByteChannel target) throws IOException {
+        byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long copied = 0;
+        int read;
+        while ((read = body.read(chunk)) >= 0) {
+            buffer.clear().limit(read);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            fileWrittenBytes.add(read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Returns the body for a small file from the response cache, loading it on a miss.
+     *
+     * Gzipped bodies come from a fresh sidecar when there is one and are compressed otherwise.
+     *
+     * @param metadata The requested file's current metadata, which forms part of the cache key.
+     * @param gzip     Whether the gzip encoding is wanted.
+     * @return The raw or gzipped file content.
+     * @throws IOException If the file cannot be read.
+     */
+    private static byte[] loadCachedBody(FileMetadata metadata, boolean gzip) throws IOException {
+        Path filePath = metadata.path();
+        CacheKey key = new CacheKey(filePath, metadata.lastModifiedTime().toMillis(), metadata.size(),
+                gzip ? "gzip" : "identity");
+        byte[] cached = responseCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] loaded;
+        if (!gzip) {
+            loaded = readFile(filePath);
+        } else {
+            FileMetadata sidecar = findFreshSidecar(metadata);
+            if (sidecar != null) {
+                loaded = readFile(sidecar.path());
+            } else {
+                try (InputStream gzipped = Channels.newInputStream(new GzipFileSource(filePath))) {
+                    loaded = gzipped.readAllBytes();
+                }
+            }
+        }
+        responseCache.put(key, loaded);
+        return loaded;
+    }
+
+    /**
+     * Reads a whole file into memory, recording a flight recorder event.
+     */
+    private static byte[] readFile(Path path) throws IOException {
+        FileReadEvent event = new FileReadEvent();
+        event.begin();
+        byte[] content = Files.readAllBytes(path);
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.bytes = content.length;
+            event.commit();
+        }
+        return content;
+    }
+
+    /**
+     * Looks for an up-to-date precompressed sibling (name.gz) of a file.
+     *
+     * A sidecar older than its source is not served; instead a rebuild is queued on the
+     * background sidecar executor so later requests can use it.
+     *
+     * Both files are looked up through the metadata cache, so a hot compressed file costs
+     * no stat calls.
+     *
+     * @param source The requested file's current metadata.
+     * @return The sidecar's metadata if it exists and is not stale, null otherwise.
+     * @throws IOException If the sidecar's content type cannot be probed.
+     */
+    private static FileMetadata findFreshSidecar(FileMetadata source) throws IOException {
+        Path filePath = source.path();
+        Path sidecar = Paths.get(filePath + SIDECAR_SUFFIX);
+        FileMetadata metadata = metadataCache.get(sidecar);
+        if (metadata == null) {
+            return null;
+        }
+        if (metadata.lastModifiedTime().compareTo(source.lastModifiedTime()) >= 0) {
+            return metadata;
+        }
+        if (sidecarsInProgress.add(sidecar)) {
+            sidecarExecutor.submit(() -> {
+                try {
+                    buildSidecar(filePath, sidecar);
+                    metadataCache.invalidate(sidecar);
+                } catch (IOException e) {
+                    Log.error("Error rebuilding " + sidecar + ": " + e.getMessage());
+                } finally {
+                    sidecarsInProgress.remove(sidecar);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a sidecar exists and is at least as new as its source.
+     *
+     * @param source  The uncompressed file.
+     * @param sidecar Its gzip sidecar.
+     * @return True if the sidecar can be served in place of the source.
+     */
+    private static boolean isSidecarFresh(Path source, Path sidecar) {
+        try {
+            return Files.getLastModifiedTime(sidecar).compareTo(Files.getLastModifiedTime(source)) >= 0;
+        } catch (IOException e) {
+            return false; // Missing or removed between checks
+        }
+    }
+
+    /**
+     * Writes the gzip encoding of a file to its sidecar.
+     *
+     * The data goes to a temporary file that is moved into place atomically, so readers never
+     * see a partial sidecar. The sidecar takes the source's modification time, which is what
+     * findFreshSidecar compares against.
+     *
+     * @param source  The file to compress.
+     * @param sidecar The sidecar path to create or replace.
+     * @throws IOException If reading, writing or renaming fails.
+     */
+    private static void buildSidecar(Path source, Path sidecar) throws IOException {
+        FileTime sourceModified = Files.getLastModifiedTime(source);
+        Path temp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), ".tmp");
+        try {
+            try (InputStream gzipped = Channels.newInputStream(new GzipFileSource(source))) {
+                Files.copy(gzipped, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(temp, sourceModified);
+            Files.move(temp, sidecar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Builds missing or stale gzip sidecars for every file under a directory, in parallel across cores.
+     *
+     * @param root The directory to walk.
+     * @return The number of sidecars written.
+     * @throws IOException If the directory cannot be walked.
+     */
+    private static int precompressTree(Path root) throws IOException {
+        List<Path> sources;
+        try (Stream<Path> files = Files.walk(root)) {
+            sources = files.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().endsWith(SIDECAR_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+        AtomicInteger built = new AtomicInteger();
+        sources.parallelStream().forEach(source -> {
+            Path sidecar = Paths.get(source + SIDECAR_SUFFIX);
+            if (!isSidecarFresh(source, sidecar)) {
+                try {
+                    buildSidecar(source, sidecar);
+                    built.incrementAndGet();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        return built.get();
+    }
+
+    /**
+     * Sends the HTTP response to the client.
+     *
+     * The status line and headers are encoded into a pooled direct buffer; a pre-encoded
+     * response is copied into it whole, body included. In-memory bodies,
+     * including memory-mapped files, are sent together with them in one gathering write, so a
+     * small response costs a single syscall and no copy into a stream buffer. File bodies follow
+     * the headers through FileChannel.transferTo, which the kernel turns into sendfile for socket
+     * channels. Streamed bodies are pulled from their source and written as they are read,
+     * chunked unless their length is known, the first piece gathered with the headers.
+     *
+     * @param response The HttpResponse object to send.
+     * @param channel  The client socket's channel, in blocking mode.
+     * @throws IOException If an I/O error occurs during writing.
+     */
+    private static void sendResponse(HttpResponse response, GatheringByteChannel channel) throws IOException {
+        SendResponseEvent event = new SendResponseEvent();
+        event.begin();
+        ByteBuffer head = encodeResponseHead(response);
+        long sent;
+        try {
+            if (response.encoded() != null) {
+                sent = writeFully(channel, head, encodedRemainder(response.encoded()));
+            } else if (response.body() != null) {
+                sent = writeFully(channel, head, ByteBuffer.wrap(response.body()));
+            } else if (response.buffer() != null) {
+                sent = writeFully(channel, head, response.buffer());
+            } else if (response.stream() != null) {
+                try (ReadableByteChannel source = response.stream()) {
+                    BodyFrames frames = BodyFrames.of(source, response.streamLength());
+                    ByteBuffer frame = frames.nextFrame();
+                    sent = writeFully(channel, frame != null ? new ByteBuffer[] {head, frame} : new ByteBuffer[] {head});
+                    while ((frame = frames.nextFrame()) != null) {
+                        sent += writeFully(channel, frame);
+                    }
+                }
+            } else {
+                sent = writeFully(channel, head);
+                if (response.file() != null) {
+                    transferFile(response.file(), channel);
+                    sent += response.file().count();
+                }
+            }
+        } finally {
+            headerBuffers.release(head);
+        }
+        if (event.shouldCommit()) {
+            event.status = response.statusCode();
+            event.encoding = response.encoding();
+            event.bytes = sent;
+            event.responses = 1;
+            event.commit();
+        }
+    }
+
+    /**
+     * Writes every remaining byte of the buffers, in order, with gathering writes.
+     *
+     * @return The number of bytes written.
+     */
+    private static long writeFully(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        long remaining = total;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        return total;
+    }
+
+    /**
+     * Encodes the status line and headers of a response, including Content-Length
+     * or, for streamed bodies of unknown length, Transfer-Encoding: chunked. A 304 carries neither, as it
+     * describes the client's cached copy rather than a body. The cached Date and Server lines
+     * follow the status line. For a pre-encoded response, the result is just those lines; the
+     * rest is sent from the shared array, see encodedRemainder.
+     *
+     * @param response The HttpResponse to encode.
+     * @return The header block, terminated by a blank line and ready for reading. It comes from
+     *         the header buffer pool unless it was too large, and should be released after sending.
+     */
+    private static ByteBuffer encodeResponseHead(HttpResponse response) {
+        // Every response is encoded exactly once, so this is where they are counted
+        countResponse(response.statusCode());
+        ByteBuffer head = headerBuffers.acquire();
+        try {
+            return putResponseHead(response, head).flip();
+        } catch (BufferOverflowException e) {
+            headerBuffers.release(head);
+        }
+        for (int capacity = HEADER_BUFFER_SIZE * 2; ; capacity *= 2) {
+            try {
+                return putResponseHead(response, ByteBuffer.allocate(capacity)).flip();
+            } catch (BufferOverflowException e) {
+                // Unusually large headers: retry with a bigger heap buffer
+            }
+        }
+    }
+
+    private static ByteBuffer putResponseHead(HttpResponse response, ByteBuffer target) {
+        byte[] encoded = response.encoded();
+        if (encoded != null) {
+            // Pre-encoded bytes only need the current Date and Server lines spliced in after the status line
+            return target.put(encoded, 0, statusLineLength(encoded)).put(DateHeaders.current());
+        }
+        return putHeaderBlock(response, target, DateHeaders.current());
+    }
+
+    private static void countResponse(int statusCode) {
+        LongAdder counter = responsesByStatus[statusCode];
+        if (counter == null) {
+            // Racing threads get the same adder back from the registry
+            counter = metrics.counter("dartfrog_responses_total", "Responses sent, by status code.",
+                    "code", Integer.toString(statusCode));
+            responsesByStatus[statusCode] = counter;
+        }
+        counter.increment();
+    }
+
+    /**
+     * Returns the part of a pre-encoded response that follows its status line, as a view of the
+     * shared array, to be written after the head from encodeResponseHead.
+     */
+    private static ByteBuffer encodedRemainder(byte[] encoded) {
+        int statusLineLength = statusLineLength(encoded);
+        return ByteBuffer.wrap(encoded, statusLineLength, encoded.length - statusLineLength);
+    }
+
+    private static int statusLineLength(byte[] encoded) {
+        int length = 0;
+        while (encoded[length++] != '\n') {
+            // Scan the status line
+        }
+        return length;
+    }
+
+    private static ByteBuffer putHeaderBlock(HttpResponse response, ByteBuffer target, byte[] dateLines) {
+        int statusCode = response.statusCode();
+        putAscii(target, "HTTP/1.1 ");
+        putDecimal(target, statusCode);
+        target.put((byte) ' ');
+        putAscii(target, getStatusMessage(statusCode));
+        target.put(CRLF).put(dateLines);
+        for (Map.Entry<String, String> header : response.headers().entrySet()) {
+            putAscii(target, header.getKey());
+            target.put((byte) ':').put((byte) ' ');
+            putAscii(target, header.getValue());
+            target.put(CRLF);
+        }
+        if (response.stream() != null && response.streamLength() < 0) {
+            putAscii(target, "Transfer-Encoding: chunked\r\n");
+        } else if (statusCode != 304) {
+            putAscii(target, "Content-Length: ");
+            putDecimal(target, response.contentLength());
+            target.put(CRLF);
+        }
+        return target.put(CRLF);
+    }
+
+    /**
+     * Puts a string one byte per char, falling back to UTF-8 if it is not plain ASCII.
+     */
+    private static void putAscii(ByteBuffer target, String text) {
+        int start = target.position();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                target.position(start).put(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            target.put((byte) c);
+        }
+    }
+
+    private static void putDecimal(ByteBuffer target, long value) {
+        if (value >= 10) {
+            putDecimal(target, value / 10);
+        }
+        target.put((byte) ('0' + value % 10));
+    }
+
+    /**
+     * Copies a region of a file to a channel without staging it in the heap.
+     *
+     * @param file   The file region to send.
+     * @param target The channel to write to.
+     * @throws IOException If the file cannot be read, shrinks while sending, or the write fails.
+     */
+    private static void transferFile(FileRegion file, WritableByteChannel target) throws IOException {
+        FileReadEvent event = new FileReadEvent();
+        event.begin();
+        try (FileChannel fileChannel = FileChannel.open(file.path(), StandardOpenOption.READ)) {
+            long position = file.position();
+            long end = file.position() + file.count();
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, target);
+                if (transferred <= 0 && position >= fileChannel.size()) {
+                    throw new EOFException("File truncated while sending: " + file.path());
+                }
+                position += transferred;
+            }
+        }
+        if (event.shouldCommit()) {
+            event.path = file.path().toString();
+            event.bytes = file.count();
+            event.commit();
+        }
+    }
+
+    /**
+     * Determines if the server should compress the response based on the Accept-Encoding header.
+     *
+     * @param acceptEncoding The Accept-Encoding header value.
+     * @return True if gzip compression is acceptable by the client, false otherwise.
+     */
+    private static boolean shouldCompress(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    /**
+     * Returns the standard HTTP status message for a given status code.
+     *
+     * @param statusCode The HTTP status code.
+     * @return The corresponding status message.
+     */
+    private static String getStatusMessage(int statusCode) {
+        return switch (statusCode) {
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 416 -> "Range Not Satisfiable";
+            case 500 -> "Internal Server Error";
+            default -> "Unknown Status";
+        };
+    }
+
+    /**
+     * A single-threaded event loop multiplexing many connections over one Selector.
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> resumedConnections = new ConcurrentLinkedQueue<>();
+        private long lastIdleSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a freshly accepted channel to this loop. Safe to call from any thread.
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to carry on with a connection that was waiting on another thread: a
+         * worker handling a request, or a streamed response's source. Safe to call from any thread.
+         */
+        void resume(NioConnection connection) {
+            resumedConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Serves the loop's connections until the process exits.
+         *
+         * Anything thrown while serving one connection, Errors such as a StackOverflowError
+         * included, closes just that connection. An Error outside any one connection leaves the
+         * loop unable to go on, and since the acceptor would keep handing it connections that
+         * would never be served, the server exits instead.
+         */
+        @Override
+        public void run() {
+            try {
+                serve();
+            } catch (Throwable e) {
+                Log.error("Event loop " + Thread.currentThread().getName() + " failed: " + e);
+                System.exit(1);
+            }
+        }
+
+        private void serve() {
+            while (true) {
+                try {
+                    selector.select(IDLE_SWEEP_INTERVAL_MS);
+                    registerPendingChannels();
+                    resumeConnections();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (SocketException e) {
+                            Log.debug("Client disconnected unexpectedly.");
+                            connection.close();
+                        } catch (Throwable e) {
+                            // Only this connection is lost; the loop carries on serving the others
+                            Log.error("Error handling client: " + e);
+                            connection.close();
+                        }
+                    }
+                    closeIdleConnections();
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Event loop error: " + e);
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key, this));
+                } catch (IOException e) {
+                    Log.error("Error registering client: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void resumeConnections() {
+            NioConnection connection;
+            while ((connection = resumedConnections.poll()) != null) {
+                if (!connection.key.isValid()) {
+                    continue; // Closed while another thread was working for it
+                }
+                try {
+                    connection.onResumed();
+                } catch (Throwable e) {
+                    Log.error("Error handling client: " + e);
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Applies the same idle timeout as the blocking engine's SO_TIMEOUT, at most once per sweep interval.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleSweep < IDLE_SWEEP_INTERVAL_MS) {
+                return;
+            }
+            lastIdleSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null && now - connection.lastActivity > SOCKET_TIMEOUT_MS) {
+                    Log.debug("Connection timed out.");
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state for the NIO engine: buffered input, pending output and keep-alive status.
+     *
+     * Other requests are routed on the loop through the same routeRequest used by the blocking
+     * engine, and their serialized responses queued for writing. A POST is routed on a virtual
+     * thread instead, so its upload and any fsync do not block the loop, and the loop streams
+     * the body to it through a NioRequestBody as it arrives; the requests after it wait until
+     * it has been answered, so responses stay in order. Reading is paused while output is pending so a slow reader
+     * cannot grow the queue.
+     */
+    private static final class NioConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final String remote;
+        private final Deque<OutboundWrite> output = new ArrayDeque<>();
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean closeAfterWrite;
+        private long lastActivity = System.currentTimeMillis();
+        private NioRequestBody body;
+        private long bodyRemaining;
+        private ChunkedDecoder chunkedDecoder;
+        private byte[] bodyPiece;
+        private HttpRequest dispatched;
+        private volatile DispatchResult dispatchResult;
+
+        /**
+         * The answer to a request routed on a worker thread.
+         */
+        private record DispatchResult(HttpResponse response, boolean failed) {
+        }
+
+        NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.remote = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (!input.hasRemaining()) {
+                ensureCapacity(input.capacity() * 2);
+            }
+            int bytesRead = channel.read(input);
+            if (bytesRead < 0) {
+                if (dispatched == null) {
+                    close();
+                    return;
+                }
+                // The handler still answers, e.g. with a 400 for a body cut short, before the connection closes
+                failBody();
+                closeAfterWrite = true;
+            } else {
+                lastActivity = System.currentTimeMillis();
+            }
+            processRequests();
+        }
+
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            flush();
+        }
+
+        /**
+         * Carries on after another thread made progress possible: a worker answered its request
+         * or took some of its body, or a streamed response produced more output.
+         */
+        void onResumed() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            processRequests();
+        }
+
+        private void processRequests() throws IOException {
+            while (true) {
+                if (body != null && !closeAfterWrite) {
+                    feedBody();
+                }
+                if (dispatched != null) {
+                    DispatchResult result = dispatchResult;
+                    if (result == null) {
+                        break; // Still being handled; the worker resumes the loop when it is done
+                    }
+                    finishDispatched(result);
+                    continue;
+                }
+                if (body != null || closeAfterWrite) {
+                    break;
+                }
+                HttpRequest request = nextRequest();
+                if (request == null) {
+                    break;
+                }
+                if (request.method().equals("POST")) {
+                    // Uploads write, rename and may fsync, none of which may stall the other connections
+                    dispatch(request);
+                    continue;
+                }
+                HttpResponse response;
+                try {
+                    long started = System.nanoTime();
+                    response = routeRequest(request);
+                    logAccess(remote, request, response, started);
+                    closeAfterWrite = closeAfterWrite || !shouldKeepAlive(request, response);
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Error processing request: " + e);
+                    response = internalServerError();
+                    closeAfterWrite = true;
+                }
+                queue(response);
+            }
+            flush();
+        }
+
+        /**
+         * Routes a request on a virtual thread, so its handler can block reading the body and
+         * writing or syncing the upload while the loop goes on serving other connections.
+         */
+        private void dispatch(HttpRequest request) {
+            dispatched = request;
+            NioRequestBody requestBody = body;
+            Thread.ofVirtual().name("nio-request").start(() -> {
+                HttpResponse response;
+                boolean failed = false;
+                try {
+                    long started = System.nanoTime();
+                    response = routeRequest(request);
+                    logAccess(remote, request, response, started);
+                } catch (Throwable e) {
+                    // Answered rather than lost with the thread, so the connection does not wait forever
+                    Log.error("Error processing request: " + e);
+                    response = internalServerError();
+                    failed = true;
+                } finally {
+                    if (requestBody != null) {
+                        requestBody.abandon();
+                    }
+                }
+                dispatchResult = new DispatchResult(response, failed);
+                loop.resume(this);
+            });
+        }
+
+        private void finishDispatched(DispatchResult result) {
+            HttpRequest request = dispatched;
+            dispatched = null;
+            dispatchResult = null;
+            closeAfterWrite = closeAfterWrite || result.failed() || !shouldKeepAlive(request, result.response());
+            if (closeAfterWrite) {
+                endBody(); // Nothing after this request will be read
+            }
+            queue(result.response());
+        }
+
+        /**
+         * Appends a response to the output queue.
+         */
+        private void queue(HttpResponse response) {
+            ByteBuffer head = encodeResponseHead(response);
+            if (response.encoded() != null) {
+                output.add(new ResponseWrite(head, encodedRemainder(response.encoded()), response));
+            } else if (response.body() != null) {
+                output.add(new ResponseWrite(head, ByteBuffer.wrap(response.body()), response));
+            } else if (response.buffer() != null) {
+                output.add(new ResponseWrite(head, response.buffer(), response));
+            } else {
+                output.add(new ResponseWrite(head, ByteBuffer.allocate(0), response));
+            }
+            if (response.file() != null) {
+                output.add(new FileWrite(response.file()));
+            }
+            if (response.stream() != null) {
+                output.add(new StreamWrite(response, this));
+            }
+        }
+
+        /**
+         * Parses the next request head from the input buffer. A body is not buffered: the
+         * request gets a NioRequestBody that feedBody fills as the bytes arrive.
+         *
+         * @return The request, or null if more bytes are needed (or the connection is closing).
+         */
+        private HttpRequest nextRequest() {
+            int headEnd = HttpParser.findHeadEnd(input.array(), 0, input.position());
+            if (headEnd < 0) {
+                if (input.position() >= MAX_HEADER_BYTES) {
+                    closeAfterWrite = true;
+                }
+                return null;
+            }
+            HttpRequest head = parseHead(input.array(), 0, headEnd);
+            consumeInput(headEnd);
+            if (head == null) {
+                closeAfterWrite = true;
+                return null;
+            }
+
+            InputStream requestBody = null;
+            String contentLengthStr = head.headers().get("content-length");
+            if (head.method().equals("POST") && head.headers().containsKey("transfer-encoding")) {
+                // Transfer-Encoding overrides Content-Length; any coding but chunked leaves the body unreadable
+                if (HttpParser.isChunked(head.headers())) {
+                    chunkedDecoder = new ChunkedDecoder();
+                    requestBody = body = new NioRequestBody(this);
+                }
+            } else if (head.method().equals("POST") && contentLengthStr != null) {
+                try {
+                    long contentLength = Long.parseLong(contentLengthStr);
+                    if (contentLength < 0) {
+                        throw new NumberFormatException("Negative length.");
+                    }
+                    bodyRemaining = contentLength;
+                    requestBody = body = new NioRequestBody(this);
+                } catch (NumberFormatException e) {
+                    Log.warn("Invalid Content-Length: " + contentLengthStr);
+                }
+            }
+            return new HttpRequest(head.method(), head.path(), head.headers(), requestBody);
+        }
+
+        /**
+         * Hands as much of the current body to its handler as has arrived and fits, stopping
+         * when the input runs out or the handler has no room for more.
+         */
+        private void feedBody() {
+            try {
+                while (true) {
+                    if (bodyPiece == null) {
+                        bodyPiece = nextBodyPiece();
+                        if (bodyPiece == null) {
+                            return; // The rest has not arrived yet
+                        }
+                    }
+                    if (!body.offer(bodyPiece)) {
+                        return; // The handler resumes the loop once it has taken some
+                    }
+                    boolean last = bodyPiece == NioRequestBody.END;
+                    bodyPiece = null;
+                    if (last) {
+                        endBody();
+                        return;
+                    }
+                }
+            } catch (ProtocolException e) {
+                Log.warn("Invalid chunked body: " + e.getMessage());
+                body.fail(e);
+                endBody();
+                // The framing is lost, so nothing after this request can be read
+                closeAfterWrite = true;
+            }
+        }
+
+        /**
+         * Takes the next piece of the current body out of the input buffer.
+         *
+         * @return The piece, NioRequestBody.END once the body is complete, or null if no body
+         *         bytes are buffered.
+         * @throws ProtocolException If a chunked body is malformed.
+         */
+        private byte[] nextBodyPiece() throws ProtocolException {
+            if (chunkedDecoder == null ? bodyRemaining == 0 : chunkedDecoder.isDone()) {
+                return NioRequestBody.END;
+            }
+            int available = input.position();
+            if (available == 0) {
+                return null;
+            }
+            if (chunkedDecoder == null) {
+                int length = (int) Math.min(available, bodyRemaining);
+                byte[] piece = Arrays.copyOf(input.array(), length);
+                bodyRemaining -= length;
+                consumeInput(length);
+                return piece;
+            }
+            ByteBuffer decoded = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+            consumeInput(chunkedDecoder.decode(input.array(), 0, available, decoded));
+            if (decoded.position() > 0) {
+                return Arrays.copyOf(decoded.array(), decoded.position());
+            }
+            return chunkedDecoder.isDone() ? NioRequestBody.END : null;
+        }
+
+        private void failBody() {
+            if (body != null) {
+                body.fail(new EOFException("Connection closed before the request body ended."));
+                endBody();
+            }
+        }
+
+        private void endBody() {
+            body = null;
+            bodyPiece = null;
+            chunkedDecoder = null;
+        }
+
+        /**
+         * Drops consumed bytes from the front of the input buffer, and shrinks it back to
+         * READ_BUFFER_SIZE if a long head made it grow.
+         */
+        private void consumeInput(int count) {
+            input.flip();
+            input.position(count);
+            if (input.capacity() > READ_BUFFER_SIZE && input.remaining() <= READ_BUFFER_SIZE) {
+                input = ByteBuffer.allocate(READ_BUFFER_SIZE).put(input);
+            } else {
+                input.compact();
+            }
+        }
+
+        /**
+         * Checks whether the loop should read from the socket: not while a handler is busy with a
+         * request whose body has been passed on or has no room for more of it, since the bytes
+         * would only pile up in the input buffer.
+         */
+        private boolean wantsInput() {
+            return !closeAfterWrite && (dispatched == null || (body != null && !body.isParked()));
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts and updates the interest set.
+         */
+        private void flush() throws IOException {
+            while (!output.isEmpty()) {
+                OutboundWrite next = output.peek();
+                boolean written;
+                if (next instanceof ResponseWrite) {
+                    written = writeResponses();
+                } else if ((written = next.writeTo(channel))) {
+                    output.poll().release();
+                }
+                if (!written) {
+                    key.interestOps(next.needsWritable() ? SelectionKey.OP_WRITE : 0);
+                    return;
+                }
+            }
+            if (closeAfterWrite && dispatched == null) {
+                close();
+            } else {
+                key.interestOps(wantsInput() ? SelectionKey.OP_READ : 0);
+            }
+        }
+
+        /**
+         * Writes the run of in-memory responses at the head of the queue, such as the answers
+         * to a pipelined batch, with one gathering write, and dequeues those fully sent.
+         *
+         * @return True if the whole run was written.
+         */
+        private boolean writeResponses() throws IOException {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (OutboundWrite write : output) {
+                if (!(write instanceof ResponseWrite response) || buffers.size() >= MAX_GATHERED_BUFFERS) {
+                    break;
+                }
+                buffers.add(response.head());
+                buffers.add(response.body());
+            }
+            SendResponseEvent event = new SendResponseEvent();
+            event.begin();
+            long written = channel.write(buffers.toArray(new ByteBuffer[0]));
+            // Until one completes, the event describes the response being written
+            HttpResponse last = ((ResponseWrite) output.peek()).response();
+            int sent = 0;
+            while (output.peek() instanceof ResponseWrite response
+                    && !response.head().hasRemaining() && !response.body().hasRemaining()) {
+                output.poll().release();
+                last = response.response();
+                sent += 2;
+            }
+            if (event.shouldCommit()) {
+                event.status = last.statusCode();
+                event.encoding = last.encoding();
+                event.bytes = written;
+                event.responses = sent / 2;
+                event.commit();
+            }
+            return sent == buffers.size();
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (input.capacity() < capacity) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, input.capacity() * 2));
+                input.flip();
+                grown.put(input);
+                input = grown;
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            failBody();
+            for (OutboundWrite pending : output) {
+                pending.release();
+            }
+            output.clear();
+            int remaining = liveConnections.decrementAndGet();
+            try {
+                channel.close();
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Closed connection with: " + remote + " (live connections: " + remaining + ")");
+                }
+            } catch (IOException e) {
+                Log.error("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Responses on a blocking connection that have not been written yet.
+     *
+     * While pipelined requests are still buffered, their in-memory responses are queued here and
+     * later sent with one gathering write, instead of one write per response. A file or streamed
+     * body flushes the queue and is then sent directly, so responses always leave in order.
+     */
+    private static final class ResponseBatch {
+        private final GatheringByteChannel channel;
+        private final List<ByteBuffer> pending = new ArrayList<>();
+        private final List<ByteBuffer> heads = new ArrayList<>();
+        private long pendingBytes;
+        private int lastStatus;
+        private String lastEncoding;
+
+        ResponseBatch(GatheringByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void add(HttpResponse response) throws IOException {
+            if (response.file() != null || response.stream() != null) {
+                flush();
+                sendResponse(response, channel);
+                return;
+            }
+            ByteBuffer head = encodeResponseHead(response);
+            heads.add(head);
+            lastStatus = response.statusCode();
+            lastEncoding = response.encoding();
+            pending.add(head);
+            pendingBytes += head.remaining();
+            ByteBuffer body = response.encoded() != null ? encodedRemainder(response.encoded())
+                    : response.body() != null ? ByteBuffer.wrap(response.body()) : response.buffer();
+            if (body != null) {
+                pending.add(body);
+                pendingBytes += body.remaining();
+            }
+            if (pendingBytes >= MAX_BATCHED_BYTES) {
+                flush(); // Bounds the memory held for a long pipeline
+            }
+        }
+
+        void flush() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            SendResponseEvent event = new SendResponseEvent();
+            event.begin();
+            try {
+                writeFully(channel, pending.toArray(new ByteBuffer[0]));
+                if (event.shouldCommit()) {
+                    event.status = lastStatus;
+                    event.encoding = lastEncoding;
+                    event.bytes = pendingBytes;
+                    event.responses = heads.size();
+                    event.commit();
+                }
+            } finally {
+                heads.forEach(headerBuffers::release);
+                heads.clear();
+                pending.clear();
+                pendingBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads requests from a blocking socket stream through one reusable byte buffer.
+     *
+     * Header blocks are located and parsed in place by HttpParser; body bytes that arrived
+     * with the headers are served from the same buffer before reading the stream again.
+     */
+    private static final class RequestReader {
+        private final InputStream in;
+        private byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int pos;
+        private int limit;
+
+        RequestReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next request line and headers.
+         *
+         * @return The request without a body, or null on end of stream, an oversized header block
+         *         or a malformed request.
+         * @throws IOException If reading the stream fails.
+         */
+        HttpRequest readHead() throws IOException {
+            if (pos == limit) {
+                pos = 0;
+                limit = 0;
+            }
+            int scanned = 0;
+            while (true) {
+                int headEnd = HttpParser.findHeadEnd(buffer, pos + scanned, limit);
+                if (headEnd >= 0) {
+                    HttpRequest head = parseHead(buffer, pos, headEnd);
+                    pos = headEnd;
+                    return head;
+                }
+                // Rescan the last two bytes in case the terminator straddles the next read
+                scanned = Math.max(0, limit - pos - 2);
+                if (limit - pos >= MAX_HEADER_BYTES || !fill()) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Checks whether a complete request head is already buffered, so readHead will not block.
+         */
+        boolean hasBufferedHead() {
+            return HttpParser.findHeadEnd(buffer, pos, limit) >= 0;
+        }
+
+        /**
+         * Returns a stream over the next length bytes, which form the current request's body.
+         *
+         * The body must be read or discarded before the next readHead.
+         */
+        InputStream bodyStream(long length) {
+            return new BodyStream(length);
+        }
+
+        /**
+         * Returns a stream that decodes the current request's chunked body as it is read.
+         *
+         * The body must be read to its end or discarded before the next readHead.
+         */
+        InputStream chunkedBodyStream() {
+            return new ChunkedBodyStream();
+        }
+
+        /**
+         * A chunked body, decoded from the connection buffer and refilled from the socket as needed.
+         * Decoded bytes go straight into the caller's array.
+         */
+        private final class ChunkedBodyStream extends InputStream {
+            private final ChunkedDecoder decoder = new ChunkedDecoder();
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (decoder.isDone()) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                ByteBuffer target = ByteBuffer.wrap(b, off, len);
+                while (true) {
+                    if (pos == limit) {
+                        pos = 0;
+                        limit = 0;
+                        if (!fill()) {
+                            throw new EOFException("Chunked request body ended early.");
+                        }
+                    }
+                    pos += decoder.decode(buffer, pos, limit, target);
+                    int read = target.position() - off;
+                    if (read > 0) {
+                        return read;
+                    }
+                    if (decoder.isDone()) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * A Content-Length delimited body, served from the connection buffer first and then the socket.
+         * Reading it never copies more than the caller's array at a time.
+         */
+        private final class BodyStream extends InputStream {
+            private long remaining;
+
+            BodyStream(long length) {
+                this.remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                int wanted = (int) Math.min(len, remaining);
+                int read;
+                if (pos < limit) {
+                    read = Math.min(wanted, limit - pos);
+                    System.arraycopy(buffer, pos, b, off, read);
+                    pos += read;
+                } else {
+                    read = in.read(b, off, wanted);
+                    if (read < 0) {
+                        throw new EOFException("Request body ended " + remaining + " bytes early.");
+                    }
+                }
+                remaining -= read;
+                return read;
+            }
+        }
+
+        /**
+         * Reads more bytes into the buffer, compacting or growing it when full.
+         *
+         * @return False on end of stream.
+         */
+        private boolean fill() throws IOException {
+            if (limit == buffer.length) {
+                if (pos > 0) {
+                    System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                } else {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        }
+    }
+
+    /**
+     * An ASCII state-machine parser for HTTP/1.1 request heads, shared by both engines.
+     *
+     * Works directly on the bytes read from the socket: the method and target are the only
+     * Strings created up front, and header values are decoded lazily by HeaderMap when looked up.
+     */
+    private static final class HttpParser {
+        private static final int METHOD = 0;
+        private static final int TARGET = 1;
+        private static final int VERSION = 2;
+        private static final int HEADER_NAME = 3;
+        private static final int HEADER_VALUE = 4;
+        private static final int SKIP_LINE = 5;
+
+        private HttpParser() {
+        }
+
+        /**
+         * Checks whether chunked is the final transfer coding, which is what frames the body.
+         */
+        static boolean isChunked(Map<String, String> headers) {
+            String transferEncoding = headers.get("transfer-encoding");
+            if (transferEncoding == null) {
+                return false;
+            }
+            String[] codings = transferEncoding.split(",");
+            return codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+        }
+
+        /**
+         * Finds the end of the header block (the byte after the terminating blank line).
+         *
+         * @param buffer The bytes read so far.
+         * @param from   The offset to start scanning at.
+         * @param limit  The end of the valid bytes in the buffer.
+         * @return The offset of the first body byte, or -1 if the header block is incomplete.
+         */
+        static int findHeadEnd(byte[] buffer, int from, int limit) {
+            for (int i = from; i < limit - 1; i++) {
+                if (buffer[i] == '\n') {
+                    if (buffer[i + 1] == '\n') {
+                        return i + 2;
+                    }
+                    if (buffer[i + 1] == '\r' && i + 2 < limit && buffer[i + 2] == '\n') {
+                        return i + 3;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses a complete header block as located by findHeadEnd.
+         *
+         * Lines may end in CRLF or a bare LF. Header names are matched case-insensitively and
+         * values are trimmed; lines without a colon are ignored.
+         *
+         * @param buffer The bytes holding the header block.
+         * @param start  The offset of the request line.
+         * @param end    The offset just past the terminating blank line.
+         * @return An HttpRequest without a body, or null if the request line is malformed.
+         */
+        static HttpRequest parseHead(byte[] buffer, int start, int end) {
+            byte[] head = Arrays.copyOfRange(buffer, start, end);
+            int[] fields = new int[32];
+            int fieldCount = 0;
+            String method = null;
+            String target = null;
+            int state = METHOD;
+            int tokenStart = 0;
+            int nameEnd = 0;
+            for (int i = 0; i < head.length; i++) {
+                byte b = head[i];
+                switch (state) {
+                    case METHOD -> {
+                        if (b == ' ') {
+                            if (i == tokenStart) {
+                                return null;
+                            }
+                            method = method(head, tokenStart, i);
+                            tokenStart = i + 1;
+                            state = TARGET;
+                        } else if (b == '\r' || b == '\n') {
+                            return null;
+                        }
+                    }
+                    case TARGET -> {
+                        if (b == ' ') {
+                            if (i == tokenStart) {
+                                return null;
+                            }
+                            target = new String(head, tokenStart, i - tokenStart, StandardCharsets.UTF_8);
+                            tokenStart = i + 1;
+                            state = VERSION;
+                        } else if (b == '\r' || b == '\n') {
+                            return null;
+                        }
+                    }
+                    case VERSION -> {
+                        if (b == ' ') {
+                            return null;
+                        } else if (b == '\n') {
+                            if (trimEnd(head, tokenStart, i) == tokenStart) {
+                                return null;
+                            }
+                            tokenStart = i + 1;
+                            state = HEADER_NAME;
+                        }
+                    }
+                    case HEADER_NAME -> {
+                        if (b == ':') {
+                            nameEnd = i;
+                            state = i > tokenStart ? HEADER_VALUE : SKIP_LINE;
+                        } else if (b == '\n') {
+                            tokenStart = i + 1; // Blank line or a line without a colon
+                        }
+                    }
+                    case HEADER_VALUE -> {
+                        if (b == '\n') {
+                            if (fieldCount == fields.length) {
+                                fields = Arrays.copyOf(fields, fields.length * 2);
+                            }
+                            int valueStart = trimStart(head, nameEnd + 1, i);
+                            fields[fieldCount++] = trimStart(head, tokenStart, nameEnd);
+                            fields[fieldCount++] = trimEnd(head, tokenStart, nameEnd);
+                            fields[fieldCount++] = valueStart;
+                            fields[fieldCount++] = trimEnd(head, valueStart, i);
+                            tokenStart = i + 1;
+                            state = HEADER_NAME;
+                        }
+                    }
+                    default -> {
+                        if (b == '\n') {
+                            tokenStart = i + 1;
+                            state = HEADER_NAME;
+                        }
+                    }
+                }
+            }
+            if (target == null) {
+                return null;
+            }
+            return new HttpRequest(method, target, new HeaderMap(head, fields, fieldCount / 4), null);
+        }
+
+        /**
+         * Returns the upper-cased method, reusing constants for the common ones.
+         */
+        private static String method(byte[] head, int start, int end) {
+            if (matches(head, start, end, "GET")) {
+                return "GET";
+            }
+            if (matches(head, start, end, "POST")) {
+                return "POST";
+            }
+            return new String(head, start, end - start, StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+        }
+
+        /**
+         * Compares bytes against lower- or upper-case ASCII text without allocating.
+         */
+        static boolean matches(byte[] bytes, int start, int end, String text) {
+            if (end - start != text.length()) {
+                return false;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                if (toLower(bytes[start + i]) != Character.toLowerCase(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int toLower(byte b) {
+            return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+        }
+
+        private static int trimStart(byte[] bytes, int start, int end) {
+            while (start < end && (bytes[start] & 0xff) <= ' ') {
+                start++;
+            }
+            return start;
+        }
+
+        private static int trimEnd(byte[] bytes, int start, int end) {
+            while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+            return end;
+        }
+    }
+
+    /**
+     * A read-only view of parsed headers over the raw header bytes.
+     *
+     * Lookups take lower-case names and compare them against the bytes case-insensitively;
+     * a value is decoded into a String only the first time it is asked for. When a header
+     * repeats, the last occurrence wins.
+     */
+    private static final class HeaderMap extends AbstractMap<String, String> {
+        private final byte[] head;
+        private final int[] fields;
+        private final int count;
+        private final String[] values;
+
+        HeaderMap(byte[] head, int[] fields, int count) {
+            this.head = head;
+            this.fields = fields;
+            this.count = count;
+            this.values = new String[count];
+        }
+
+        private int indexOf(Object key) {
+            if (key instanceof String name) {
+                for (int i = count - 1; i >= 0; i--) {
+                    if (HttpParser.matches(head, fields[i * 4], fields[i * 4 + 1], name)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private String value(int index) {
+            if (values[index] == null) {
+                int start = fields[index * 4 + 2];
+                values[index] = new String(head, start, fields[index * 4 + 3] - start, StandardCharsets.UTF_8);
+            }
+            return values[index];
+        }
+
+        @Override
+        public String get(Object key) {
+            int index = indexOf(key);
+            return index >= 0 ? value(index) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            Map<String, String> materialized = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int start = fields[i * 4];
+                String name = new String(head, start, fields[i * 4 + 1] - start, StandardCharsets.US_ASCII);
+                materialized.put(name.toLowerCase(Locale.ROOT), value(i));
+            }
+            return materialized.entrySet();
+        }
+    }
+
+    /**
+     * A unit of output queued on an NIO connection.
+     */
+    private interface OutboundWrite {
+        /**
+         * Writes as much as the non-blocking channel accepts.
+         *
+         * @return True once everything has been written.
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Tells whether an incomplete write is waiting for the socket to drain. A write waiting on
+         * its source instead returns false and has its connection resumed when it can continue.
+         */
+        default boolean needsWritable() {
+            return true;
+        }
+
+        /**
+         * Releases any resources held, whether or not the write completed.
+         */
+        default void release() {
+        }
+    }
+
+    /**
+     * A queued response head and in-memory body, sent together with gathering writes.
+     * The head goes back to the header buffer pool once the write is done or abandoned.
+     */
+    private record ResponseWrite(ByteBuffer head, ByteBuffer body, HttpResponse response) implements OutboundWrite {
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(new ByteBuffer[] {head, body});
+            return !head.hasRemaining() && !body.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            headerBuffers.release(head);
+        }
+    }
+
+    /**
+     * A queued file region, sent with transferTo as the socket becomes writable.
+     */
+    private static final class FileWrite implements OutboundWrite {
+        private final FileRegion file;
+        private FileChannel fileChannel;
+        private long position;
+
+        FileWrite(FileRegion file) {
+            this.file = file;
+            this.position = file.position();
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            // One event per writable turn, covering only the bytes the socket took
+            FileReadEvent event = new FileReadEvent();
+            event.begin();
+            long started = position;
+            try {
+                return transfer(channel);
+            } finally {
+                if (event.shouldCommit()) {
+                    event.path = file.path().toString();
+                    event.bytes = position - started;
+                    event.commit();
+                }
+            }
+        }
+
+        private boolean transfer(SocketChannel channel) throws IOException {
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file.path(), StandardOpenOption.READ);
+            }
+            long end = file.position() + file.count();
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, channel);
+                if (transferred <= 0) {
+                    if (position >= fileChannel.size()) {
+                        throw new EOFException("File truncated while sending: " + file.path());
+                    }
+                    return false;
+                }
+                position += transferred;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    Log.error("Error closing file: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued streamed body. Sources may block, so they are not read on the event loop: a
+     * virtual thread pulls frames into a small queue and the loop writes them as the socket
+     * drains. When the queue runs dry the connection waits with no interest ops set, and the
+     * pump asks the loop to resume it once the next frame, the end or a failure is ready.
+     */
+    private static final class StreamWrite implements OutboundWrite {
+        private final ReadableByteChannel source;
+        private final BodyFrames frames;
+        private final NioConnection connection;
+        private final BlockingQueue<ByteBuffer> ready = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private volatile boolean finished;
+        private volatile IOException failure;
+        private Thread pump;
+        private ByteBuffer frame;
+
+        StreamWrite(HttpResponse response, NioConnection connection) {
+            this.source = response.stream();
+            this.frames = BodyFrames.of(source, response.streamLength());
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (pump == null) {
+                pump = Thread.ofVirtual().name("body-stream").start(this::pump);
+            }
+            while (true) {
+                if (frame == null || !frame.hasRemaining()) {
+                    frame = ready.poll();
+                    if (frame == null) {
+                        // Park before the final check, so a frame queued meanwhile still resumes us
+                        parked.set(true);
+                        if (ready.isEmpty() && !finished && failure == null) {
+                            return false;
+                        }
+                        parked.set(false);
+                        frame = ready.poll();
+                        if (frame == null) {
+                            if (failure != null) {
+                                throw failure;
+                            }
+                            return true; // finished, and everything queued before it has been sent
+                        }
+                    }
+                }
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public boolean needsWritable() {
+            return !parked.get();
+        }
+
+        private void pump() {
+            try {
+                ByteBuffer next;
+                while ((next = frames.nextFrame()) != null) {
+                    // The framer reuses its buffer, so each frame is handed over as a copy
+                    ready.put(ByteBuffer.allocate(next.remaining()).put(next).flip());
+                    resume();
+                }
+                finished = true;
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                return; // Released before the body was sent
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            resume();
+        }
+
+        private void resume() {
+            if (parked.compareAndSet(true, false)) {
+                connection.loop.resume(connection);
+            }
+        }
+
+        @Override
+        public void release() {
+            if (pump != null) {
+                pump.interrupt();
+            }
+            try {
+                source.close();
+            } catch (IOException e) {
+                Log.error("Error closing stream: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A request body that an event loop reads off the socket and hands, piece by piece, to the
+     * handler running on a worker thread, which reads it as an InputStream.
+     *
+     * At most MAX_QUEUED_BODY_PIECES pieces wait per body, and MAX_QUEUED_BODY_BYTES across all
+     * bodies; when either is reached the loop stops reading the connection until the handler
+     * has taken some, so an upload of any size costs only a few pieces of memory. Once the
+     * handler has answered, the rest of the body is discarded as it arrives.
+     */
+    private static final class NioRequestBody extends InputStream {
+        private static final byte[] END = new byte[0];
+        private static final byte[] FAILED = new byte[0];
+        private static final AtomicLong queuedBytes = new AtomicLong();
+        private static final Queue<NioRequestBody> waitingForBudget = new ConcurrentLinkedQueue<>();
+
+        private final NioConnection connection;
+        private final BlockingQueue<byte[]> pieces = new ArrayBlockingQueue<>(MAX_QUEUED_BODY_PIECES);
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private volatile boolean abandoned;
+        private volatile IOException failure;
+        private byte[] piece;
+        private int piecePos;
+        private boolean ended;
+
+        NioRequestBody(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Hands the handler the next piece of the body, or END. Called on the event loop.
+         *
+         * @return False if there is no room for it yet; the loop is resumed once there is.
+         */
+        boolean offer(byte[] next) {
+            if (abandoned || tryOffer(next)) {
+                return true;
+            }
+            // Park before the final attempt, so room made meanwhile still resumes the loop
+            parked.set(true);
+            if (tryOffer(next)) {
+                parked.set(false);
+                return true;
+            }
+            return false;
+        }
+
+        boolean isParked() {
+            return parked.get();
+        }
+
+        /**
+         * Ends the body with an error for the handler, such as when the client disconnects
+         * partway through it. Called on the event loop.
+         */
+        void fail(IOException e) {
+            failure = e;
+            pieces.offer(FAILED); // If the queue is full, the handler sees the failure once it has drained it
+        }
+
+        /**
+         * Discards the rest of the body once the handler has answered. Called on the worker.
+         */
+        void abandon() {
+            abandoned = true;
+            discardQueued();
+            resume();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (piece == null || piecePos == piece.length) {
+                if (ended) {
+                    return -1;
+                }
+                if (pieces.isEmpty() && failure != null) {
+                    throw failure;
+                }
+                byte[] next;
+                try {
+                    next = pieces.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while reading the request body.");
+                }
+                release(next.length);
+                resume();
+                if (next == FAILED) {
+                    throw failure;
+                }
+                if (next == END) {
+                    ended = true;
+                    return -1;
+                }
+                piece = next;
+                piecePos = 0;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = Math.min(len, piece.length - piecePos);
+            System.arraycopy(piece, piecePos, b, off, read);
+            piecePos += read;
+            return read;
+        }
+
+        private boolean tryOffer(byte[] next) {
+            long queued;
+            do {
+                queued = queuedBytes.get();
+                if (next.length > 0 && queued + next.length > MAX_QUEUED_BODY_BYTES) {
+                    waitingForBudget.add(this);
+                    return false;
+                }
+            } while (!queuedBytes.compareAndSet(queued, queued + next.length));
+            if (!pieces.offer(next)) {
+                release(next.length);
+                return false;
+            }
+            if (abandoned) {
+                discardQueued(); // The handler answered while the piece was being added
+            }
+            return true;
+        }
+
+        private void discardQueued() {
+            byte[] next;
+            while ((next = pieces.poll()) != null) {
+                release(next.length);
+            }
+        }
+
+        private void resume() {
+            if (parked.compareAndSet(true, false)) {
+                connection.loop.resume(connection);
+            }
+        }
+
+        /**
+         * Returns bytes to the shared budget and resumes the loops of bodies that were waiting
+         * for it; any that still find it spent wait again.
+         */
+        private static void release(int bytes) {
+            if (bytes == 0) {
+                return;
+            }
+            queuedBytes.addAndGet(-bytes);
+            NioRequestBody waiting;
+            while ((waiting = waitingForBudget.poll()) != null) {
+                waiting.resume();
+            }
+        }
+    }
+
+    /**
+     * An incremental decoder for chunked request bodies, shared by both engines.
+     *
+     * Bytes are fed in whatever pieces they arrive in and decoded data is copied out as it is
+     * found, so a body of any size is never held whole. Chunk extensions and trailer fields are
+     * parsed and skipped: nothing here has a use for them. Like the head parser, bare LF line
+     * endings are accepted.
+     */
+    private static final class ChunkedDecoder {
+        private static final int SIZE = 0;
+        private static final int EXTENSION = 1;
+        private static final int SIZE_LF = 2;
+        private static final int DATA = 3;
+        private static final int DATA_CR = 4;
+        private static final int DATA_LF = 5;
+        private static final int TRAILER_START = 6;
+        private static final int TRAILER = 7;
+        private static final int TRAILER_LF = 8;
+        private static final int FINAL_LF = 9;
+        private static final int DONE = 10;
+
+        private int state = SIZE;
+        private long chunkSize;
+        private boolean sawDigit;
+        private long remaining;
+        private int lineBytes;
+
+        /**
+         * Decodes as much of src[from, to) as possible into dst.
+         *
+         * Stops when the input is used up, dst is full, or the body is complete; bytes after the
+         * last chunk's trailers, such as a pipelined request, are left unconsumed.
+         *
+         * @return The number of input bytes consumed.
+         * @throws ProtocolException If the chunk framing is malformed.
+         */
+        int decode(byte[] src, int from, int to, ByteBuffer dst) throws ProtocolException {
+            int i = from;
+            while (i < to && state != DONE) {
+                if (state == DATA) {
+                    int n = (int) Math.min(Math.min(to - i, dst.remaining()), remaining);
+                    if (n == 0) {
+                        break; // dst is full
+                    }
+                    dst.put(src, i, n);
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = DATA_CR;
+                    }
+                    continue;
+                }
+                byte b = src[i++];
+                switch (state) {
+                    case SIZE -> {
+                        int digit = Character.digit(b, 16);
+                        if (digit >= 0) {
+                            if (chunkSize > (Long.MAX_VALUE >> 4)) {
+                                throw new ProtocolException("Chunk size too large.");
+                            }
+                            chunkSize = (chunkSize << 4) | digit;
+                            sawDigit = true;
+                        } else if (b == ';' || b == ' ' || b == '\t') {
+                            state = EXTENSION;
+                        } else if (b == '\r') {
+                            state = SIZE_LF;
+                        } else if (b == '\n') {
+                            endSizeLine();
+                        } else {
+                            throw new ProtocolException("Invalid chunk size.");
+                        }
+                    }
+                    case EXTENSION -> {
+                        if (b == '\r') {
+                            state = SIZE_LF;
+                        } else if (b == '\n') {
+                            endSizeLine();
+                        } else if (++lineBytes > MAX_HEADER_BYTES) {
+                            throw new ProtocolException("Chunk extension too long.");
+                        }
+                    }
+                    case SIZE_LF -> {
+                        expect(b, '\n');
+                        endSizeLine();
+                    }
+                    case DATA_CR -> {
+                        if (b == '\r') {
+                            state = DATA_LF;
+                        } else {
+                            expect(b, '\n');
+                            state = SIZE;
+                        }
+                    }
+                    case DATA_LF -> {
+                        expect(b, '\n');
+                        state = SIZE;
+                    }
+                    case TRAILER_START -> {
+                        if (b == '\r') {
+                            state = FINAL_LF;
+                        } else if (b == '\n') {
+                            state = DONE;
+                        } else {
+                            state = TRAILER;
+                            countTrailerByte();
+                        }
+                    }
+                    case TRAILER -> {
+                        if (b == '\r') {
+                            state = TRAILER_LF;
+                        } else if (b == '\n') {
+                            state = TRAILER_START;
+                        } else {
+                            countTrailerByte();
+                        }
+                    }
+                    case TRAILER_LF -> {
+                        expect(b, '\n');
+                        state = TRAILER_START;
+                    }
+                    case FINAL_LF -> {
+                        expect(b, '\n');
+                        state = DONE;
+                    }
+                    default -> throw new IllegalStateException("Unexpected state: " + state);
+                }
+            }
+            return i - from;
+        }
+
+        /**
+         * Returns true once the last chunk and its trailers have been consumed.
+         */
+        boolean isDone() {
+            return state == DONE;
+        }
+
+        private void endSizeLine() throws ProtocolException {
+            if (!sawDigit) {
+                throw new ProtocolException("Missing chunk size.");
+            }
+            remaining = chunkSize;
+            state = chunkSize == 0 ? TRAILER_START : DATA;
+            chunkSize = 0;
+            sawDigit = false;
+            lineBytes = 0;
+        }
+
+        private void countTrailerByte() throws ProtocolException {
+            if (++lineBytes > MAX_HEADER_BYTES) {
+                throw new ProtocolException("Trailer section too long.");
+            }
+        }
+
+        private static void expect(byte actual, char expected) throws ProtocolException {
+            if (actual != expected) {
+                throw new ProtocolException("Malformed chunk framing.");
+            }
+        }
+    }
+
+    /**
+     * Produces the framed pieces of a streamed body for writing, one buffer at a time.
+     */
+    private interface BodyFrames {
+        /**
+         * Reads the next piece from the source.
+         *
+         * @return The bytes to write next, or null once the body is complete.
+         * @throws IOException If reading the source fails.
+         */
+        ByteBuffer nextFrame() throws IOException;
+
+        /**
+         * Frames a streamed body: chunked if its length is unknown (negative), as is otherwise.
+         */
+        static BodyFrames of(ReadableByteChannel source, long length) {
+            return length < 0 ? new ChunkedEncoder(source) : new FixedLengthFrames(source, length);
+        }
+
+        /**
+         * Reads whatever the source has next, so each piece is sent as soon as it is produced
+         * rather than once a full buffer has built up.
+         *
+         * @return The number of bytes read, at least one, or -1 at end of stream.
+         */
+        static int readSome(ReadableByteChannel source, ByteBuffer dst) throws IOException {
+            int read;
+            do {
+                read = source.read(dst); // A blocking source only returns 0 if it is misbehaving
+            } while (read == 0);
+            return read;
+        }
+    }
+
+    /**
+     * Passes through a stream whose length was declared in Content-Length, one source read of up
+     * to STREAM_CHUNK_SIZE bytes at a time. A source that ends early fails the response rather
+     * than leaving the client waiting for the missing bytes; anything past the declared length is
+     * not sent.
+     */
+    private static final class FixedLengthFrames implements BodyFrames {
+        private final ReadableByteChannel source;
+        private final ByteBuffer data = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+        private long remaining;
+
+        FixedLengthFrames(ReadableByteChannel source, long length) {
+            this.source = source;
+            this.remaining = length;
+        }
+
+        @Override
+        public ByteBuffer nextFrame() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+            data.clear().limit((int) Math.min(data.capacity(), remaining));
+            if (BodyFrames.readSome(source, data) < 0) {
+                throw new EOFException("Stream ended " + remaining + " bytes before its declared length.");
+            }
+            data.flip();
+            remaining -= data.remaining();
+            return data;
+        }
+    }
+
+    /**
+     * Runs a BodyWriter on its own virtual thread and exposes what it writes as a channel.
+     *
+     * The two sides meet through a Pipe, so the writer is held back whenever the socket is slower
+     * than it, and memory stays bounded by the pipe's buffer. Writes are not buffered on the way
+     * in, so each one can be sent as soon as it is made. The writer only starts on the first
+     * read. If it fails, reading ends with that failure instead of end of stream, so a response
+     * cut short is never mistaken for a complete one. Closing the channel makes the writer's
+     * next write fail, which stops it.
+     */
+    private static final class WriterSource implements ReadableByteChannel {
+        private final BodyWriter writer;
+        private Pipe pipe;
+        private volatile IOException failure;
+
+        WriterSource(BodyWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (pipe == null) {
+                pipe = Pipe.open();
+                Thread.ofVirtual().name("body-writer").start(this::produce);
+            }
+            int read = pipe.source().read(dst);
+            if (read < 0 && failure != null) {
+                throw new IOException("Response body writer failed: " + failure.getMessage(), failure);
+            }
+            return read;
+        }
+
+        private void produce() {
+            try {
+                OutputStream out = Channels.newOutputStream(pipe.sink());
+                writer.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            } finally {
+                // Closed only after any failure is recorded, so the reader never sees a clean end first
+                try {
+                    pipe.sink().close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return pipe == null || pipe.source().isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (pipe != null) {
+                pipe.source().close();
+            }
+        }
+    }
+
+    /**
+     * Frames bytes pulled from a blocking source as HTTP/1.1 chunks, one per source read of up to
+     * STREAM_CHUNK_SIZE bytes, ending with the zero-length terminating chunk. The frame buffer is
+     * reused between calls.
+     */
+    private static final class ChunkedEncoder implements BodyFrames {
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        private final ReadableByteChannel source;
+        private final ByteBuffer data = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+        private final ByteBuffer frame = ByteBuffer.allocate(STREAM_CHUNK_SIZE + 16);
+        private boolean finished;
+
+        ChunkedEncoder(ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        /**
+         * Reads the next chunk from the source.
+         *
+         * @return The framed chunk ready for writing, or null after the terminating chunk has been returned.
+         * @throws IOException If reading the source fails.
+         */
+        @Override
+        public ByteBuffer nextFrame() throws IOException {
+            if (finished) {
+                return null;
+            }
+            data.clear();
+            int read = BodyFrames.readSome(source, data);
+            data.flip();
+            frame.clear();
+            if (read > 0) {
+                frame.put(Integer.toHexString(data.remaining()).getBytes()).put(CRLF).put(data).put(CRLF);
+            } else {
+                frame.put(LAST_CHUNK);
+                finished = true;
+            }
+            return frame.flip();
+        }
+    }
+
+    /**
+     * Produces the gzip encoding of a file on demand, so compressed responses need only
+     * fixed-size buffers no matter how large the file is. The file is opened on first read.
+     */
+    private static final class GzipFileSource implements ReadableByteChannel {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Path path;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[STREAM_CHUNK_SIZE];
+        private final byte[] output = new byte[STREAM_CHUNK_SIZE];
+        private InputStream in;
+        private int outputPos;
+        private int outputLimit;
+        private boolean headerWritten;
+        private boolean trailerWritten;
+        private boolean open = true;
+        private long compressNanos;
+        private CompressEvent event;
+
+        GzipFileSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int written = 0;
+            while (dst.hasRemaining()) {
+                if (outputPos == outputLimit && !fill()) {
+                    break;
+                }
+                int count = Math.min(dst.remaining(), outputLimit - outputPos);
+                dst.put(output, outputPos, count);
+                outputPos += count;
+                written += count;
+            }
+            return written == 0 ? -1 : written;
+        }
+
+        /**
+         * Refills the output buffer with the next piece of the gzip stream.
+         *
+         * @return False once the header, deflated data and trailer have all been produced.
+         */
+        private boolean fill() throws IOException {
+            outputPos = 0;
+            outputLimit = 0;
+            if (!headerWritten) {
+                System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+                outputLimit = GZIP_HEADER.length;
+                headerWritten = true;
+                return true;
+            }
+            if (in == null) {
+                event = new CompressEvent();
+                event.begin();
+                in = Files.newInputStream(path);
+            }
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    int read = in.read(input);
+                    if (read < 0) {
+                        deflater.finish();
+                    } else {
+                        crc.update(input, 0, read);
+                        deflater.setInput(input, 0, read);
+                    }
+                }
+                long started = System.nanoTime();
+                outputLimit = deflater.deflate(output);
+                compressNanos += System.nanoTime() - started;
+                if (outputLimit > 0) {
+                    return true;
+                }
+            }
+            if (!trailerWritten) {
+                writeIntLE((int) crc.getValue(), 0);
+                writeIntLE((int) deflater.getBytesRead(), 4);
+                outputLimit = 8;
+                trailerWritten = true;
+                return true;
+            }
+            return false;
+        }
+
+        private void writeIntLE(int value, int offset) {
+            output[offset] = (byte) value;
+            output[offset + 1] = (byte) (value >> 8);
+            output[offset + 2] = (byte) (value >> 16);
+            output[offset + 3] = (byte) (value >> 24);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                if (event != null && event.shouldCommit()) {
+                    event.path = path.toString();
+                    event.bytes = deflater.getBytesRead();
+                    event.compressedBytes = GZIP_HEADER.length + deflater.getBytesWritten() + (trailerWritten ? 8 : 0);
+                    event.deflateTime = compressNanos;
+                    event.commit();
+                }
+                deflater.end();
+                if (in != null) {
+                    gzipDurations.record(compressNanos);
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Group commit for the directory syncs that make upload renames durable.
+     *
+     * Each upload forces its own file data on its own thread, so concurrent uploads overlap
+     * their forces and the filesystem can fold them into shared journal commits. After the
+     * rename, the upload queues its directory and blocks. A single flusher thread wakes every
+     * GROUP_FSYNC_INTERVAL_MS and syncs each directory queued since the last round once, for
+     * every upload waiting on it.
+     */
+    private static final class FsyncGroup {
+        private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fsync-group");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private Map<Path, CompletableFuture<Void>> pending = new HashMap<>();
+
+        FsyncGroup() {
+            flusher.scheduleWithFixedDelay(this::flush, GROUP_FSYNC_INTERVAL_MS, GROUP_FSYNC_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Blocks until the directory's entries have been forced by a flush round.
+         */
+        void syncDirectory(Path directory) throws IOException {
+            CompletableFuture<Void> done;
+            synchronized (this) {
+                done = pending.computeIfAbsent(directory, unused -> new CompletableFuture<>());
+            }
+            try {
+                done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for fsync.");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        private void flush() {
+            Map<Path, CompletableFuture<Void>> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new HashMap<>();
+            }
+            batch.forEach((directory, done) -> {
+                try {
+                    Main.syncDirectory(directory);
+                    done.complete(null);
+                } catch (IOException e) {
+                    done.completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * What a GET needs to know about a regular file, computed once per version of the file.
+     */
+    private record FileMetadata(Path path, long size, FileTime lastModifiedTime, String contentType,
+                                String entityTag, String gzipEntityTag, String lastModified) {
+
+        /**
+         * Stats a file and probes its content type.
+         *
+         * @param path The file to describe.
+         * @return The file's metadata, or null if it is missing or not a regular file.
+         * @throws IOException If the content type cannot be probed.
+         */
+        static FileMetadata read(Path path) throws IOException {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null; // Missing or unreadable: served as a 404 either way
+            }
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            String contentType = Files.probeContentType(path);
+            if (contentType == null) {
+                contentType = "application/octet-stream";
+            }
+            return new FileMetadata(path, attributes.size(), attributes.lastModifiedTime(), contentType,
+                    Main.entityTag(attributes, false), Main.entityTag(attributes, true),
+                    httpDate(attributes.lastModifiedTime()));
+        }
+    }
+
+    /**
+     * Caches FileMetadata per path, including misses, and keeps it coherent with a WatchService.
+     *
+     * Every directory holding a cached path is registered with the watcher before the path is
+     * stat'ed, and any create, delete or modify event in it drops the affected entries. A lookup
+     * only stores its result if no invalidation ran while it was stat'ing, so an event can never
+     * be overtaken by the stale answer it was meant to remove. Directories that cannot be watched
+     * are simply not cached.
+     */
+    private static final class MetadataCache {
+        private static final FileMetadata MISSING = new FileMetadata(null, -1, null, null, null, null, null);
+        private final ConcurrentHashMap<Path, FileMetadata> entries = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+        private final AtomicLong invalidations = new AtomicLong();
+        private volatile WatchService watchService;
+
+        /**
+         * Returns the metadata for a regular file, or null if there is no such file.
+         *
+         * @param path An absolute, normalized file path.
+         * @throws IOException If the content type cannot be probed.
+         */
+        FileMetadata get(Path path) throws IOException {
+            FileMetadata cached = entries.get(path);
+            if (cached != null) {
+                return cached == MISSING ? null : cached;
+            }
+            long generation = invalidations.get();
+            boolean watched = watch(path.getParent());
+            FileMetadata metadata = FileMetadata.read(path);
+            if (watched && invalidations.get() == generation) {
+                if (entries.size() >= MAX_METADATA_ENTRIES) {
+                    entries.clear(); // Keeps a scan of random names from growing the map without bound
+                }
+                entries.putIfAbsent(path, metadata != null ? metadata : MISSING);
+            }
+            return metadata;
+        }
+
+        /**
+         * Drops a path's entry.
+         */
+        void invalidate(Path path) {
+            invalidations.incrementAndGet();
+            entries.remove(path);
+        }
+
+        /**
+         * Drops a path's entry and those of anything beneath it, for directories that were
+         * created, removed or renamed.
+         */
+        void invalidateTree(Path path) {
+            invalidations.incrementAndGet();
+            entries.keySet().removeIf(cached -> cached.startsWith(path));
+        }
+
+        /**
+         * Registers a directory with the watch service, starting the watcher on first use.
+         *
+         * @return True if changes in the directory will be seen.
+         */
+        private boolean watch(Path directory) {
+            if (directory == null) {
+                return false;
+            }
+            if (watchedDirectories.containsKey(directory)) {
+                return true;
+            }
+            try {
+                WatchService service = watchService();
+                watchedDirectories.computeIfAbsent(directory, dir -> {
+                    try {
+                        return dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return true;
+            } catch (IOException | UncheckedIOException e) {
+                return false; // Missing directory, or out of watches: fall back to stat'ing every time
+            }
+        }
+
+        private synchronized WatchService watchService() throws IOException {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(this::processEvents, "metadata-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            return watchService;
+        }
+
+        private void processEvents() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so nothing cached can be trusted
+                        invalidations.incrementAndGet();
+                        entries.clear();
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                        invalidate(directory.resolve((Path) event.context()));
+                    } else {
+                        // A create or delete may be a directory being renamed in or out
+                        invalidateTree(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // The directory itself is gone; the next lookup under it will register again
+                    watchedDirectories.remove(directory, key);
+                    invalidateTree(directory);
+                }
+            }
+        }
+    }
+
+    /**
+     * The Date and Server header lines sent with every response, encoded once a second.
+     *
+     * A daemon ticker re-encodes the lines at each second boundary and publishes them through a
+     * volatile field, so a response only copies a few dozen bytes into its head. The ticker
+     * starts the first time a response is encoded.
+     */
+    private static final class DateHeaders {
+        private static volatile byte[] current = encode();
+        private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "date-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            long untilNextSecond = 1000 - System.currentTimeMillis() % 1000;
+            ticker.scheduleAtFixedRate(() -> current = encode(), untilNextSecond, 1000, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Returns the current lines, each terminated by CRLF. The array must not be modified.
+         */
+        static byte[] current() {
+            return current;
+        }
+
+        private static byte[] encode() {
+            return ("Date: " + HTTP_DATE.format(Instant.now()) + "\r\n"
+                    + "Server: " + SERVER_NAME + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Direct buffers for encoding response heads, recycled across connections and threads.
+     *
+     * A direct buffer is written to a socket without the JDK first copying it into a temporary
+     * direct buffer, but is costly to allocate, so buffers are reused. The pool grows to the
+     * number of responses in flight at once, up to its cap; surplus buffers are left to the GC.
+     */
+    private static final class HeaderBufferPool {
+        private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(MAX_POOLED_HEADER_BUFFERS);
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(HEADER_BUFFER_SIZE);
+        }
+
+        /**
+         * Returns a buffer from acquire to the pool. Heap buffers from the oversized-header
+         * fallback are ignored.
+         */
+        void release(ByteBuffer buffer) {
+            if (buffer.isDirect()) {
+                free.offer(buffer.clear());
+            }
+        }
+    }
+
+    /**
+     * A byte-budgeted LRU cache of file bodies shared by all connections.
+     *
+     * Keys carry the file's mtime and size, so an entry is never served for a file that has
+     * changed; POSTs also drop every entry for the path they overwrite.
+     */
+    private static final class ResponseCache {
+        private final long capacityBytes;
+        private final LinkedHashMap<CacheKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+
+        ResponseCache(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+
+        /**
+         * Returns the largest file that will be cached, so one entry cannot flush most of the cache.
+         */
+        long maxEntryBytes() {
+            return Math.min(MAX_CACHED_FILE_BYTES, capacityBytes / 4);
+        }
+
+        synchronized byte[] get(CacheKey key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(CacheKey key, byte[] body) {
+            if (body.length > maxEntryBytes()) {
+                return;
+            }
+            byte[] previous = entries.put(key, body);
+            usedBytes += body.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> eldest = entries.values().iterator();
+            while (usedBytes > capacityBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+
+        synchronized void invalidate(Path path) {
+            Iterator<Map.Entry<CacheKey, byte[]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<CacheKey, byte[]> entry = it.next();
+                if (entry.getKey().path().equals(path)) {
+                    usedBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only mappings of mid-sized files, shared by all connections and bounded by a byte budget.
+     *
+     * Each request is given a duplicate of the mapping, so connections never share a position.
+     * Like the response cache, keys carry mtime and size; mapping a new version of a file drops
+     * the old ones. Java cannot unmap a buffer explicitly, so a dropped mapping is released once
+     * the last response using it has been sent and the buffer is collected.
+     */
+    private static final class MappedFileCache {
+        private final long threshold;
+        private final long capacityBytes;
+        private final LinkedHashMap<CacheKey, MappedByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+
+        MappedFileCache(long threshold) {
+            this.threshold = threshold;
+            this.capacityBytes = Math.max(threshold, MAX_MAPPED_BYTES);
+        }
+
+        /**
+         * Returns the largest file that will be mapped.
+         */
+        long threshold() {
+            return threshold;
+        }
+
+        /**
+         * Returns a private view of a file's mapping, mapping it on first use.
+         *
+         * @param metadata The file's current metadata, which forms part of the key.
+         * @return A duplicate of the shared mapping, positioned at the start of the file.
+         * @throws IOException If the file cannot be opened or mapped.
+         */
+        ByteBuffer map(FileMetadata metadata) throws IOException {
+            CacheKey key = new CacheKey(metadata.path(), metadata.lastModifiedTime().toMillis(), metadata.size(),
+                    "identity");
+            MappedByteBuffer mapped;
+            synchronized (this) {
+                mapped = entries.get(key);
+            }
+            if (mapped == null) {
+                try (FileChannel fileChannel = FileChannel.open(metadata.path(), StandardOpenOption.READ)) {
+                    mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, metadata.size());
+                }
+                put(key, mapped);
+            }
+            return mapped.duplicate();
+        }
+
+        private synchronized void put(CacheKey key, MappedByteBuffer mapped) {
+            removeWhere(cached -> cached.path().equals(key.path()));
+            entries.put(key, mapped);
+            usedBytes += mapped.capacity();
+            Iterator<MappedByteBuffer> eldest = entries.values().iterator();
+            while (usedBytes > capacityBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().capacity();
+                eldest.remove();
+            }
+        }
+
+        synchronized void invalidate(Path path) {
+            removeWhere(cached -> cached.path().equals(path));
+        }
+
+        private void removeWhere(Predicate<CacheKey> condition) {
+            Iterator<Map.Entry<CacheKey, MappedByteBuffer>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<CacheKey, MappedByteBuffer> entry = it.next();
+                if (condition.test(entry.getKey())) {
+                    usedBytes -= entry.getValue().capacity();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies one cached encoding of one version of a file.
+     */
+    private record CacheKey(Path path, long lastModified, long size, String encoding) {
+    }
+
+    /**
+     * Produces a multipart/byteranges body: each range's part header followed by its bytes,
+     * read from the file with positional reads, then the closing delimiter.
+     */
+    private static final class MultipartRangeSource implements ReadableByteChannel {
+        private final Path path;
+        private final List<ByteRange> ranges;
+        private final List<ByteBuffer> delimiters = new ArrayList<>();
+        private FileChannel fileChannel;
+        private int index;
+        private boolean inRange;
+        private long position;
+        private boolean open = true;
+
+        MultipartRangeSource(Path path, String contentType, List<ByteRange> ranges, long size, String boundary) {
+            this.path = path;
+            this.ranges = ranges;
+            for (int i = 0; i < ranges.size(); i++) {
+                String delimiter = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + ranges.get(i).contentRange(size) + "\r\n\r\n";
+                delimiters.add(ByteBuffer.wrap(delimiter.getBytes()));
+            }
+            delimiters.add(ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes()));
+        }
+
+        /**
+         * Returns the size of the whole multipart body, so it can be sent with Content-Length.
+         */
+        long length() {
+            long length = 0;
+            for (ByteBuffer delimiter : delimiters) {
+                length += delimiter.remaining();
+            }
+            for (ByteRange range : ranges) {
+                length += range.length();
+            }
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int written = 0;
+            while (dst.hasRemaining()) {
+                if (!inRange) {
+                    ByteBuffer delimiter = delimiters.get(index);
+                    if (delimiter.hasRemaining()) {
+                        int count = Math.min(dst.remaining(), delimiter.remaining());
+                        dst.put(dst.position(), delimiter, delimiter.position(), count);
+                        dst.position(dst.position() + count);
+                        delimiter.position(delimiter.position() + count);
+                        written += count;
+                        continue;
+                    }
+                    if (index == ranges.size()) {
+                        break; // Closing delimiter sent
+                    }
+                    inRange = true;
+                    position = ranges.get(index).first();
+                }
+                long remaining = ranges.get(index).last() + 1 - position;
+                if (remaining == 0) {
+                    inRange = false;
+                    index++;
+                    continue;
+                }
+                if (fileChannel == null) {
+                    fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                }
+                int limit = dst.limit();
+                if (dst.remaining() > remaining) {
+                    dst.limit(dst.position() + (int) remaining);
+                }
+                int read = fileChannel.read(dst, position);
+                dst.limit(limit);
+                if (read < 0) {
+                    throw new EOFException("File truncated while sending: " + path);
+                }
+                position += read;
+                written += read;
+            }
+            return written == 0 ? -1 : written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles requests for one method on one route.
+     */
+    @FunctionalInterface
+    private interface RouteHandler {
+        /**
+         * @param request The request.
+         * @param params  The values captured by the route's {name} and {*name} segments.
+         * @return The response.
+         * @throws IOException If an I/O error occurs during handling.
+         */
+        HttpResponse handle(HttpRequest request, PathParams params) throws IOException;
+    }
+
+    /**
+     * Path parameters captured by a route, in pattern order.
+     */
+    private record PathParams(String[] names, String[] values) {
+        private static final PathParams NONE = new PathParams(new String[0], new String[0]);
+
+        /**
+         * Returns the value captured for the named parameter, or null if the route has none.
+         */
+        String get(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Maps request paths to per-method handlers through a radix trie.
+     *
+     * Patterns are literal text with two kinds of capturing segment: {name} matches one
+     * non-empty path segment and {*name} matches the non-empty rest of the path, slashes
+     * included; a {*name} must end the pattern. Literal text is stored in compressed edges,
+     * and each node indexes its literal children by first character, so a lookup costs one
+     * array load and one prefix comparison per edge no matter how many routes are registered.
+     * Literal edges are preferred to {name}, and {name} to {*name}; a branch that fails further
+     * down falls back to the next kind.
+     *
+     * A path that matches a route but not the request's method is answered with 405 and an
+     * Allow header listing the route's methods; one that matches no route gets 404. Routes are
+     * added at startup, before the server accepts connections; lookups take no locks.
+     */
+    private static final class Router {
+        private final Node root = new Node("");
+        private int maxParams;
+
+        /**
+         * Registers a handler, replacing any earlier one for the same method and pattern.
+         *
+         * @param method  The request method, e.g. "GET".
+         * @param pattern The path pattern, e.g. "/files/{*name}".
+         * @param handler The handler.
+         * @throws IllegalArgumentException If the pattern is malformed.
+         */
+        void add(String method, String pattern, RouteHandler handler) {
+            if (!pattern.startsWith("/")) {
+                throw new IllegalArgumentException("Route pattern must start with '/': " + pattern);
+            }
+            List<String> names = new ArrayList<>();
+            Node node = root;
+            int pos = 0;
+            while (pos < pattern.length()) {
+                int open = pattern.indexOf('{', pos);
+                if (open < 0) {
+                    node = node.literal(pattern.substring(pos));
+                    break;
+                }
+                int close = pattern.indexOf('}', open);
+                boolean rest = open + 1 < pattern.length() && pattern.charAt(open + 1) == '*';
+                String name = close < 0 ? "" : pattern.substring(rest ? open + 2 : open + 1, close);
+                boolean wholeSegment = pattern.charAt(open - 1) == '/'
+                        && (close + 1 == pattern.length() || (!rest && pattern.charAt(close + 1) == '/'));
+                if (name.isEmpty() || !wholeSegment || names.contains(name)) {
+                    throw new IllegalArgumentException("Malformed route pattern: " + pattern);
+                }
+                if (open > pos) {
+                    node = node.literal(pattern.substring(pos, open));
+                }
+                if (rest) {
+                    if (node.rest == null) {
+                        node.rest = new Node("");
+                    }
+                    node = node.rest;
+                } else {
+                    if (node.param == null) {
+                        node.param = new Node("");
+                    }
+                    node = node.param;
+                }
+                names.add(name);
+                pos = close + 1;
+            }
+            if (node.route == null) {
+                node.route = new Route(pattern);
+            }
+            node.route.add(method, handler, names.toArray(new String[0]));
+            maxParams = Math.max(maxParams, names.size());
+        }
+
+        /**
+         * Dispatches a request to the handler registered for its method and path.
+         */
+        HttpResponse route(HttpRequest request) throws IOException {
+            int[] bounds = new int[maxParams * 2];
+            Route route = match(root, request.path(), 0, bounds, 0);
+            if (route == null) {
+                return NOT_FOUND;
+            }
+            RouteHandler handler = route.handlers.get(request.method());
+            if (handler == null) {
+                return route.methodNotAllowed;
+            }
+            long started = System.nanoTime();
+            try {
+                return handler.handle(request, route.params(request.path(), bounds));
+            } finally {
+                route.durations().record(System.nanoTime() - started);
+            }
+        }
+
+        /**
+         * Returns the route whose pattern matches the path, or null. The start and end of each
+         * captured value are stored in bounds.
+         */
+        Route match(String path, int[] bounds) {
+            return match(root, path, 0, bounds, 0);
+        }
+
+        private static Route match(Node node, String path, int pos, int[] bounds, int captured) {
+            if (pos == path.length()) {
+                return node.route;
+            }
+            Node child = node.child(path.charAt(pos));
+            if (child != null && path.startsWith(child.prefix, pos)) {
+                Route route = match(child, path, pos + child.prefix.length(), bounds, captured);
+                if (route != null) {
+                    return route;
+                }
+            }
+            if (node.param != null) {
+                int end = path.indexOf('/', pos);
+                if (end < 0) {
+                    end = path.length();
+                }
+                if (end > pos) {
+                    Route route = match(node.param, path, end, bounds, captured + 1);
+                    if (route != null) {
+                        bounds[captured * 2] = pos;
+                        bounds[captured * 2 + 1] = end;
+                        return route;
+                    }
+                }
+            }
+            if (node.rest != null && node.rest.route != null) {
+                bounds[captured * 2] = pos;
+                bounds[captured * 2 + 1] = path.length();
+                return node.rest.route;
+            }
+            return null;
+        }
+
+        /**
+         * A trie node: the literal text on the edge into it and what may follow.
+         */
+        private static final class Node {
+            private static final int INDEXED_CHARS = 128;
+
+            String prefix;
+            Node[] children;
+            Map<Character, Node> otherChildren;
+            Node param;
+            Node rest;
+            Route route;
+
+            Node(String prefix) {
+                this.prefix = prefix;
+            }
+
+            Node child(char first) {
+                if (first < INDEXED_CHARS) {
+                    return children != null ? children[first] : null;
+                }
+                return otherChildren != null ? otherChildren.get(first) : null;
+            }
+
+            void setChild(Node child) {
+                char first = child.prefix.charAt(0);
+                if (first < INDEXED_CHARS) {
+                    if (children == null) {
+                        children = new Node[INDEXED_CHARS];
+                    }
+                    children[first] = child;
+                } else {
+                    if (otherChildren == null) {
+                        otherChildren = new HashMap<>();
+                    }
+                    otherChildren.put(first, child);
+                }
+            }
+
+            /**
+             * Returns the node reached from this one by the given literal text, adding and
+             * splitting edges as needed.
+             */
+            Node literal(String text) {
+                Node node = this;
+                while (!text.isEmpty()) {
+                    Node child = node.child(text.charAt(0));
+                    if (child == null) {
+                        child = new Node(text);
+                        node.setChild(child);
+                        return child;
+                    }
+                    int common = 0;
+                    int limit = Math.min(child.prefix.length(), text.length());
+                    while (common < limit && child.prefix.charAt(common) == text.charAt(common)) {
+                        common++;
+                    }
+                    if (common < child.prefix.length()) {
+                        Node split = new Node(child.prefix.substring(0, common));
+                        child.prefix = child.prefix.substring(common);
+                        split.setChild(child);
+                        node.setChild(split);
+                        child = split;
+                    }
+                    text = text.substring(common);
+                    node = child;
+                }
+                return node;
+            }
+        }
+
+        /**
+         * The per-method handlers of one pattern, its pre-encoded 405 response and its timings.
+         */
+        private static final class Route {
+            final String pattern;
+            final Map<String, RouteHandler> handlers = new HashMap<>();
+            String[] paramNames = new String[0];
+            HttpResponse methodNotAllowed;
+            private volatile LogHistogram durations;
+
+            Route(String pattern) {
+                this.pattern = pattern;
+            }
+
+            /**
+             * Returns the histogram of handler times, registered on the route's first request so
+             * that routes never requested cost nothing.
+             */
+            LogHistogram durations() {
+                LogHistogram histogram = durations;
+                if (histogram == null) {
+                    histogram = metrics.histogram("dartfrog_route_seconds", "Time spent in route handlers.",
+                            "route", pattern);
+                    durations = histogram;
+                }
+                return histogram;
+            }
+
+            void add(String method, RouteHandler handler, String[] names) {
+                if (!handlers.isEmpty() && !Arrays.equals(paramNames, names)) {
+                    throw new IllegalArgumentException("Route parameters renamed: " + String.join(", ", names));
+                }
+                handlers.put(method, handler);
+                paramNames = names;
+                String allow = handlers.keySet().stream().sorted().collect(Collectors.joining(", "));
+                methodNotAllowed = new HttpResponse.Builder(405).withHeader("Allow", allow).build().preEncoded();
+            }
+
+            PathParams params(String path, int[] bounds) {
+                if (paramNames.length == 0) {
+                    return PathParams.NONE;
+                }
+                String[] values = new String[paramNames.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = path.substring(bounds[i * 2], bounds[i * 2 + 1]);
+                }
+                return new PathParams(paramNames, values);
+            }
+        }
+    }
+
+    /**
+     * A histogram of non-negative long values, such as latencies in nanoseconds, that any number
+     * of threads can record into without locking.
+     *
+     * Buckets are log-linear: values below 128 get a bucket each, and every power-of-two range
+     * above that is split into 64 equal buckets, so a reported percentile is within 1/64 of the
+     * recorded value over the whole long range in under 4,000 counters.
+     */
+    private static final class LogHistogram {
+        private static final int LINEAR_BUCKETS = 128;
+        private static final int SUB_BUCKETS = 64;
+        private static final int SUB_BUCKET_BITS = 6;
+
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + (64 - 7) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            counts.getAndIncrement(bucket(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile, or 0 if nothing was
+         * recorded. Counts recorded during the scan may or may not be included.
+         *
+         * @param percentile A percentile between 0 and 100.
+         */
+        long valueAtPercentile(double percentile) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        /**
+         * Returns how many recorded values fall at or below each of the ascending bounds, to
+         * within the bucket precision, followed by the total count.
+         */
+        long[] cumulativeCounts(long[] bounds) {
+            long[] cumulative = new long[bounds.length + 1];
+            long seen = 0;
+            int next = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                while (next < bounds.length && upperBound(i) > bounds[next]) {
+                    cumulative[next++] = seen;
+                }
+                seen += counts.get(i);
+            }
+            while (next < bounds.length) {
+                cumulative[next++] = seen;
+            }
+            cumulative[bounds.length] = seen;
+            return cumulative;
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+            long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Severity of a console log message; each level includes the ones before it.
+     */
+    private enum LogLevel {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    /**
+     * Leveled console logging through an AsyncLog, so that request threads never block on
+     * stdout. Errors and warnings go to stderr, the rest to stdout.
+     *
+     * Messages below the configured level are discarded before they are queued. Call sites on
+     * the request path check isDebugEnabled first, so the message is not even built.
+     */
+    private static final class Log {
+        private static volatile LogLevel level = LogLevel.INFO;
+        private static final AsyncLog out = AsyncLog.start("stdout", bytes -> {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+        });
+        private static final AsyncLog err = AsyncLog.start("stderr", bytes -> {
+            System.err.write(bytes, 0, bytes.length);
+            System.err.flush();
+        });
+
+        static void setLevel(LogLevel newLevel) {
+            level = newLevel;
+        }
+
+        static boolean isDebugEnabled() {
+            return level == LogLevel.DEBUG;
+        }
+
+        static void debug(String text) {
+            log(LogLevel.DEBUG, text);
+        }
+
+        static void info(String text) {
+            log(LogLevel.INFO, text);
+        }
+
+        static void warn(String text) {
+            log(LogLevel.WARN, text);
+        }
+
+        static void error(String text) {
+            log(LogLevel.ERROR, text);
+        }
+
+        private static void log(LogLevel messageLevel, String text) {
+            if (messageLevel.compareTo(level) <= 0) {
+                LogMessage message = new LogMessage(System.currentTimeMillis(), messageLevel, text);
+                (messageLevel.compareTo(LogLevel.WARN) <= 0 ? err : out).append(message);
+            }
+        }
+    }
+
+    /**
+     * One line of a log, formatted by the log's writer thread rather than by the thread that
+     * logged it.
+     */
+    private interface LogEntry {
+        void appendTo(StringBuilder line);
+    }
+
+    private record LogMessage(long timeMillis, LogLevel level, String text) implements LogEntry {
+        @Override
+        public void appendTo(StringBuilder line) {
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(timeMillis), line);
+            line.append(' ').append(level).append(' ').append(text);
+        }
+    }
+
+    /**
+     * One request in the access log, written as a JSON object per line.
+     */
+    private record AccessEntry(long timeMillis, String remote, String method, String path, int status,
+                               long bytes, long nanos) implements LogEntry {
+        @Override
+        public void appendTo(StringBuilder line) {
+            line.append("{\"time\":\"");
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(timeMillis), line);
+            line.append("\",\"remote\":\"").append(remote);
+            line.append("\",\"method\":\"");
+            appendJsonString(line, method);
+            line.append("\",\"path\":\"");
+            appendJsonString(line, path);
+            line.append("\",\"status\":").append(status);
+            line.append(",\"bytes\":").append(bytes);
+            line.append(",\"duration_us\":").append(nanos / 1000).append('}');
+        }
+
+        private static void appendJsonString(StringBuilder line, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * A log whose entries are handed from any number of threads to one writer thread through a
+     * bounded lock-free ring, and written out in batches.
+     *
+     * Appending never blocks: when the ring is full the entry is dropped and counted in
+     * dartfrog_log_dropped_total, so a slow disk or terminal costs log lines, not latency. The
+     * writer sleeps while the ring is empty and is woken by the next append. Entries still
+     * queued at exit are written by a shutdown hook.
+     */
+    private static final class AsyncLog {
+        private final LogRing ring = new LogRing(LOG_RING_CAPACITY);
+        private final LogOutput output;
+        private final LongAdder dropped;
+        private final Thread writer;
+        private volatile boolean sleeping;
+
+        /**
+         * Receives each batch of formatted lines.
+         */
+        @FunctionalInterface
+        interface LogOutput {
+            void write(byte[] lines) throws IOException;
+        }
+
+        private AsyncLog(String name, LogOutput output) {
+            this.output = output;
+            this.dropped = metrics.counter("dartfrog_log_dropped_total", "Log entries dropped because the log was full.",
+                    "log", name);
+            this.writer = new Thread(this::drainForever, "log-writer-" + name);
+            writer.setDaemon(true);
+        }
+
+        static AsyncLog start(String name, LogOutput output) {
+            AsyncLog log = new AsyncLog(name, output);
+            log.writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(log::drain));
+            return log;
+        }
+
+        void append(LogEntry entry) {
+            if (!ring.offer(entry)) {
+                dropped.increment();
+                return;
+            }
+            if (sleeping) {
+                sleeping = false;
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void drainForever() {
+            while (true) {
+                if (!drain()) {
+                    sleeping = true;
+                    if (ring.isEmpty()) {
+                        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        /**
+         * Writes out every queued entry.
+         *
+         * @return False if there was nothing to write.
+         */
+        private synchronized boolean drain() {
+            StringBuilder batch = new StringBuilder();
+            LogEntry entry;
+            while ((entry = ring.poll()) != null) {
+                entry.appendTo(batch);
+                batch.append('\n');
+                if (batch.length() >= LOG_BATCH_CHARS) {
+                    write(batch);
+                }
+            }
+            if (batch.isEmpty()) {
+                return false;
+            }
+            write(batch);
+            return true;
+        }
+
+        private void write(StringBuilder batch) {
+            try {
+                output.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Error writing log: " + e.getMessage());
+            }
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * A bounded multi-producer, single-consumer queue over an array.
+     *
+     * Producers claim a slot by advancing the tail with compare-and-set and publish their entry
+     * by advancing the slot's sequence number, which tells the consumer the slot is full and,
+     * once consumed, tells producers a lap later that it is free again.
+     */
+    private static final class LogRing {
+        private final LogEntry[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private long head;
+
+        /**
+         * @param capacity A power of two.
+         */
+        LogRing(int capacity) {
+            slots = new LogEntry[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * Adds an entry, from any thread.
+         *
+         * @return False if the ring is full.
+         */
+        boolean offer(LogEntry entry) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long sequence = sequences.get(index);
+                if (sequence == position) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots[index] = entry;
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (sequence < position) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Removes the oldest entry, from the consumer thread only.
+         *
+         * @return The entry, or null if the ring is empty or the next entry is not yet published.
+         */
+        LogEntry poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            LogEntry entry = slots[index];
+            slots[index] = null;
+            sequences.set(index, head + slots.length);
+            head++;
+            return entry;
+        }
+
+        boolean isEmpty() {
+            return sequences.get((int) (head & mask)) != head + 1;
+        }
+    }
+
+    /**
+     * A log file that is rotated once it would grow past a size limit: name.1 is the newest
+     * rotated file and the oldest beyond ACCESS_LOG_FILES is deleted. Written only by its log's
+     * writer thread.
+     */
+    private static final class RotatingFile implements AsyncLog.LogOutput {
+        private final Path path;
+        private final long maxBytes;
+        private FileChannel channel;
+        private long size;
+
+        RotatingFile(Path path, long maxBytes) throws IOException {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            open();
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            size = channel.size();
+        }
+
+        @Override
+        public void write(byte[] lines) throws IOException {
+            if (size > 0 && size + lines.length > maxBytes) {
+                rotate();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines);
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+        }
+
+        private void rotate() throws IOException {
+            channel.close();
+            Files.deleteIfExists(rotated(ACCESS_LOG_FILES));
+            for (int i = ACCESS_LOG_FILES - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+
+        private Path rotated(int generation) {
+            return path.resolveSibling(path.getFileName() + "." + generation);
+        }
+    }
+
+    /**
+     * Flight recorder event for parsing one request head, emitted by both engines.
+     */
+    @Name("dartfrog.ParseRequest")
+    @Label("Parse Request")
+    @Category({"dartfrog", "HTTP"})
+    @Description("Parsing of a request head that has fully arrived.")
+    private static final class ParseRequestEvent extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Head Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Flight recorder event for routing one request and running its handler.
+     */
+    @Name("dartfrog.RouteRequest")
+    @Label("Route Request")
+    @Category({"dartfrog", "HTTP"})
+    @Description("Routing and handling of a request, up to the response being ready to send.")
+    private static final class RouteRequestEvent extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Content Length")
+        @DataAmount
+        long bytes;
+
+        @Label("Content Encoding")
+        String encoding;
+    }
+
+    /**
+     * Flight recorder event for reading file content to answer a GET: into memory for the
+     * response cache, or from disk to a socket.
+     */
+    @Name("dartfrog.FileRead")
+    @Label("File Read")
+    @Category({"dartfrog", "Files"})
+    private static final class FileReadEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Flight recorder event for an upload, from the first body byte to the file being renamed
+     * into place and, under --fsync, synced.
+     */
+    @Name("dartfrog.FileWrite")
+    @Label("File Write")
+    @Category({"dartfrog", "Files"})
+    private static final class FileWriteEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Flight recorder event for one file gzipped on the fly, for a response or a sidecar. Its
+     * duration runs from the first compressed byte to the source being closed and so includes
+     * time waiting on the client; deflateTime is the time spent compressing.
+     */
+    @Name("dartfrog.Compress")
+    @Label("Compress")
+    @Category({"dartfrog", "Files"})
+    private static final class CompressEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Input Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedBytes;
+
+        @Label("Deflate Time")
+        @Timespan
+        long deflateTime;
+    }
+
+    /**
+     * Flight recorder event for one write of responses to a socket. A pipelined batch is sent
+     * in one write; status and encoding are those of its last response. On the event loop a
+     * write the socket only partly accepts completes no responses, and a file or streamed body
+     * is sent after the event for its head.
+     */
+    @Name("dartfrog.SendResponse")
+    @Label("Send Response")
+    @Category({"dartfrog", "HTTP"})
+    private static final class SendResponseEvent extends Event {
+        @Label("Status")
+        int status;
+
+        @Label("Content Encoding")
+        String encoding;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytes;
+
+        @Label("Responses")
+        int responses;
+    }
+
+    /**
+     * Counters, gauges and histograms exposed at /metrics in the Prometheus text format.
+     *
+     * Series are created on first use and kept forever; callers on hot paths hold on to the
+     * LongAdder or LogHistogram they get back, so recording never touches the registry's maps.
+     * Histograms record nanoseconds and are rendered in seconds against fixed bucket bounds.
+     */
+    private static final class MetricsRegistry {
+        private static final String[] BUCKET_SECONDS = {
+                "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+                "0.5", "1", "2.5", "5", "10"};
+        private static final long[] BUCKET_NANOS = Arrays.stream(BUCKET_SECONDS)
+                .mapToLong(seconds -> Math.round(Double.parseDouble(seconds) * 1e9)).toArray();
+
+        private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+        /**
+         * A metric name with its help text, type and series, keyed by their rendered labels.
+         */
+        private record Family(String name, String help, String type, Map<String, Object> series) {
+        }
+
+        LongAdder counter(String name, String help) {
+            return counter(name, help, null, null);
+        }
+
+        LongAdder counter(String name, String help, String label, String value) {
+            return (LongAdder) series(name, help, "counter", label, value, LongAdder::new);
+        }
+
+        LogHistogram histogram(String name, String help) {
+            return histogram(name, help, null, null);
+        }
+
+        LogHistogram histogram(String name, String help, String label, String value) {
+            return (LogHistogram) series(name, help, "histogram", label, value, LogHistogram::new);
+        }
+
+        /**
+         * Registers a gauge whose value is read when the metrics are rendered.
+         */
+        void gauge(String name, String help, LongSupplier value) {
+            series(name, help, "gauge", null, null, () -> value);
+        }
+
+        private Object series(String name, String help, String type, String label, String value,
+                              Supplier<Object> factory) {
+            Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentHashMap<>()));
+            if (!family.type().equals(type)) {
+                throw new IllegalArgumentException("Metric " + name + " is already a " + family.type());
+            }
+            String labels = label == null ? "" : label + "=\"" + escapeLabel(value) + "\"";
+            return family.series().computeIfAbsent(labels, l -> factory.get());
+        }
+
+        private static String escapeLabel(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        /**
+         * Renders every series, sorted by name and labels.
+         */
+        byte[] render() {
+            StringBuilder out = new StringBuilder(4096);
+            for (Family family : new TreeMap<>(families).values()) {
+                out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+                out.append("# TYPE ").append(family.name()).append(' ').append(family.type()).append('\n');
+                for (Map.Entry<String, Object> series : new TreeMap<>(family.series()).entrySet()) {
+                    String labels = series.getKey();
+                    switch (series.getValue()) {
+                        case LongAdder counter -> sample(out, family.name(), labels, counter.sum());
+                        case LongSupplier gauge -> sample(out, family.name(), labels, gauge.getAsLong());
+                        case LogHistogram histogram -> renderHistogram(out, family.name(), labels, histogram);
+                        default -> throw new IllegalStateException();
+                    }
+                }
+            }
+            return out.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void renderHistogram(StringBuilder out, String name, String labels, LogHistogram histogram) {
+            long[] cumulative = histogram.cumulativeCounts(BUCKET_NANOS);
+            String separator = labels.isEmpty() ? "" : ",";
+            for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+                sample(out, name + "_bucket", labels + separator + "le=\"" + BUCKET_SECONDS[i] + "\"", cumulative[i]);
+            }
+            long count = cumulative[BUCKET_SECONDS.length];
+            sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", count);
+            out.append(name).append("_sum");
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(histogram.sum() / 1e9).append('\n');
+            sample(out, name + "_count", labels, count);
+        }
+
+        private static void sample(StringBuilder out, String name, String labels, long value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    /**
+     * The --loadgen mode: replays a weighted mix of requests against a running server at a
+     * fixed arrival rate and reports latency percentiles and throughput.
+     *
+     * Each connection sends its share of the rate on its own schedule, one request at a time
+     * over keep-alive. Latency is measured from when a request was scheduled to be sent, not
+     * when it was, so a stalled server is charged for the requests queued behind the stall
+     * instead of the generator quietly slowing down with it (coordinated omission). A rate the
+     * server cannot sustain therefore shows up as latency that grows over the run.
+     */
+    private static final class LoadGenerator {
+        private static final String FILE_NAME = "loadgen.txt";
+        private static final int FILE_BYTES = 1024;
+
+        private final String host;
+        private final int port;
+        private final int connections;
+        private final long rate;
+        private final long durationNanos;
+        private final List<byte[]> requests = new ArrayList<>();
+        private final long[] cumulativeWeights;
+        private final LogHistogram latencies = new LogHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        /**
+         * @param mix Comma-separated kind:weight pairs; kinds are root, echo, user-agent,
+         *            files-get and files-post.
+         * @throws IllegalArgumentException If the mix is malformed or has no positive weight.
+         */
+        LoadGenerator(String host, int port, int connections, long rate, long durationSeconds, String mix) {
+            this.host = host;
+            this.port = port;
+            this.connections = connections;
+            this.rate = rate;
+            this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+
+            String[] entries = mix.split(",");
+            cumulativeWeights = new long[entries.length];
+            long total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                long weight;
+                try {
+                    weight = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+                } catch (NumberFormatException e) {
+                    weight = -1;
+                }
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Invalid mix entry: " + entries[i]);
+                }
+                requests.add(request(parts[0]));
+                total += weight;
+                cumulativeWeights[i] = total;
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("Request mix has no positive weight: " + mix);
+            }
+        }
+
+        private String target() {
+            return host + ":" + port;
+        }
+
+        private byte[] request(String kind) {
+            String head = switch (kind) {
+                case "root" -> "GET / HTTP/1.1\r\n";
+                case "echo" -> "GET /echo/loadgen HTTP/1.1\r\n";
+                case "user-agent" -> "GET /user-agent HTTP/1.1\r\n";
+                case "files-get" -> "GET /files/" + FILE_NAME + " HTTP/1.1\r\n";
+                case "files-post" -> "POST /files/" + FILE_NAME + " HTTP/1.1\r\n"
+                        + "Content-Type: text/plain\r\n"
+                        + "Content-Length: " + FILE_BYTES + "\r\n";
+                default -> throw new IllegalArgumentException("Unknown request kind: " + kind);
+            };
+            String request = head + "Host: " + target() + "\r\nUser-Agent: dartfrog-loadgen\r\n\r\n";
+            if (kind.equals("files-post")) {
+                request += "x".repeat(FILE_BYTES);
+            }
+            return request.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private byte[] nextRequest() {
+            long pick = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+            int i = 0;
+            while (cumulativeWeights[i] <= pick) {
+                i++;
+            }
+            return requests.get(i);
+        }
+
+        /**
+         * Uploads the file read by files-get requests, runs the load and prints the report.
+         *
+         * @throws IOException If the server cannot be reached before the run starts.
+         */
+        void run() throws IOException, InterruptedException {
+            try (Socket socket = new Socket(host, port)) {
+                exchange(socket, new BufferedInputStream(socket.getInputStream()), request("files-post"));
+            }
+            System.out.println("Running " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s at " + rate
+                    + " req/s over " + connections + " connection(s) against " + target());
+
+            long start = System.nanoTime();
+            long interval = TimeUnit.SECONDS.toNanos(connections) / rate;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                // Staggered so the connections' schedules interleave into one even arrival rate
+                long first = start + interval * i / connections;
+                threads.add(Thread.ofPlatform().name("loadgen-" + i).start(() -> drive(first, interval, start + durationNanos)));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            report(System.nanoTime() - start);
+        }
+
+        private void drive(long first, long interval, long end) {
+            Socket socket = null;
+            InputStream in = null;
+            for (long scheduled = first; scheduled < end; scheduled += interval) {
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                try {
+                    if (socket == null) {
+                        socket = new Socket(host, port);
+                        socket.setTcpNoDelay(true);
+                        in = new BufferedInputStream(socket.getInputStream());
+                    }
+                    int status = exchange(socket, in, nextRequest());
+                    latencies.record(System.nanoTime() - scheduled);
+                    statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+                    if (status == 400 || status == 404 || status == 500) {
+                        // The server closes the connection after these
+                        socket.close();
+                        socket = null;
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                    closeQuietly(socket);
+                    socket = null;
+                }
+            }
+            closeQuietly(socket);
+        }
+
+        private static void closeQuietly(Socket socket) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing left to do with it
+                }
+            }
+        }
+
+        /**
+         * Sends one request and reads its whole response.
+         *
+         * @return The response status code.
+         */
+        private static int exchange(Socket socket, InputStream in, byte[] request) throws IOException {
+            socket.getOutputStream().write(request);
+            String statusLine = readLine(in);
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new ProtocolException("Malformed status line: " + statusLine);
+            }
+            long contentLength = 0;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                String name = colon > 0 ? line.substring(0, colon).trim() : "";
+                String value = colon > 0 ? line.substring(colon + 1).trim() : "";
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                    skipFully(in, size + 2);
+                }
+                while (!readLine(in).isEmpty()) {
+                    // Skip trailers
+                }
+            } else {
+                skipFully(in, contentLength);
+            }
+            return Integer.parseInt(parts[1]);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        private static void skipFully(InputStream in, long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Connection closed mid-response");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private void report(long elapsedNanos) {
+            long completed = latencies.count();
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf(Locale.ROOT, "Requests: %d in %.2fs, %.1f req/s (target %d), errors: %d%n",
+                    completed, seconds, completed / seconds, rate, errors.sum());
+            System.out.println("Status codes: " + new TreeMap<>(statuses));
+            System.out.printf(Locale.ROOT, "Latency (ms): p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                    latencies.valueAtPercentile(50) / 1e6, latencies.valueAtPercentile(99) / 1e6,
+                    latencies.valueAtPercentile(99.9) / 1e6, latencies.max() / 1e6);
+        }
+    }
+
+    /**
+     * An inclusive byte range of a representation, as in a Range or Content-Range header.
+     */
+    private record ByteRange(long first, long last) {
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(long size) {
+            return "bytes " + first + "-" + last + "/" + size;
+        }
+    }
+
+    /**
+     * A byte range of a file on disk, used as a response body that is never loaded into the heap.
+     */
+    private record FileRegion(Path path, long position, long count) {
+    }
+
+    /**
+     * Represents an HTTP request. The body, if any, is a stream that can be read once.
+     */
+    private record HttpRequest(String method, String path, Map<String, String> headers, InputStream body) {
+    }
+
+    /**
+     * Writes a generated response body to the client as it is produced.
+     */
+    @FunctionalInterface
+    private interface BodyWriter {
+        /**
+         * Writes the whole body. The stream is flushed and closed by the caller. It is not
+         * buffered: each write can go out on its own, so wrap it in a BufferedOutputStream to
+         * batch many small writes.
+         *
+         * @param out The body stream; writes block while the client is slower than the writer.
+         * @throws IOException If the body cannot be produced or the client has gone away.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Represents an HTTP response.
+     */
+    private record HttpResponse(int statusCode, Map<String, String> headers, byte[] body, ByteBuffer buffer,
+                                FileRegion file, ReadableByteChannel stream, long streamLength, byte[] encoded) {
+        /**
+         * Returns the number of body bytes that will follow the headers.
+         */
+        public long contentLength() {
+            if (file != null) {
+                return file.count();
+            }
+            if (buffer != null) {
+                return buffer.remaining();
+            }
+            if (stream != null) {
+                return streamLength;
+            }
+            return body != null ? body.length : 0;
+        }
+
+        /**
+         * Returns the Content-Encoding of the body, or "identity" if it is sent as is.
+         */
+        public String encoding() {
+            return headers.getOrDefault("Content-Encoding", "identity");
+        }
+
+        /**
+         * Returns this response with its status line, headers and body serialized once, so that
+         * sending it is a single write of shared bytes. Only in-memory bodies can be pre-encoded.
+         */
+        public HttpResponse preEncoded() {
+            if (buffer != null || file != null || stream != null) {
+                throw new IllegalArgumentException("Only in-memory bodies can be pre-encoded.");
+            }
+            int bodyLength = body != null ? body.length : 0;
+            for (int capacity = HEADER_BUFFER_SIZE + bodyLength; ; capacity *= 2) {
+                try {
+                    // The Date and Server lines are left out here and spliced in on every send
+                    ByteBuffer bytes = putHeaderBlock(this, ByteBuffer.allocate(capacity), new byte[0]);
+                    if (body != null) {
+                        bytes.put(body);
+                    }
+                    byte[] encoded = Arrays.copyOf(bytes.array(), bytes.position());
+                    return new HttpResponse(statusCode, headers, body, null, null, null, -1, encoded);
+                } catch (BufferOverflowException e) {
+                    // Unusually large headers: retry with a bigger buffer
+                }
+            }
+        }
+
+        /**
+         * Builder class for constructing HttpResponse objects with a fluent API.
+         */
+        public static class Builder {
+            private final int statusCode;
+            private final Map<String, String> headers = new HashMap<>();
+            private byte[] body;
+            private ByteBuffer buffer;
+            private FileRegion file;
+            private ReadableByteChannel stream;
+            private long streamLength = -1;
+
+            public Builder(int statusCode) {
+                this.statusCode = statusCode;
+            }
+
+            public Builder withHeader(String name, String value) {
+                this.headers.put(name, value);
+                return this;
+            }
+
+            public Builder withBody(byte[] body) {
                 this.body = body;
+                this.buffer = null;
+                this.file = null;
+                this.stream = null;
+                return this;
+            }
+
+            /**
+             * Sets a body held in a buffer, such as a memory-mapped file. The bytes between its
+             * position and limit are sent, so shared buffers must be passed as a duplicate.
+             */
+            public Builder withBuffer(ByteBuffer buffer) {
+                this.buffer = buffer;
+                this.body = null;
+                this.file = null;
+                this.stream = null;
+                return this;
+            }
+
+            public Builder withFile(FileRegion file) {
+                this.file = file;
+                this.body = null;
+                this.buffer = null;
+                this.stream = null;
+                return this;
+            }
+
+            /**
+             * Sets a body of unknown length, sent with chunked encoding. The source is closed after sending.
+             */
+            public Builder withStream(ReadableByteChannel stream) {
+                return withStream(stream, -1);
+            }
+
+            /**
+             * Sets a body read from a source as it is sent, with Content-Length if length is not
+             * negative and chunked encoding otherwise. The source is closed after sending.
+             */
+            public Builder withStream(ReadableByteChannel stream, long length) {
+                this.stream = stream;
+                this.streamLength = length;
+                this.body = null;
+                this.buffer = null;
+                this.file = null;
                 return this;
             }
 
+            /**
+             * Sets a body produced by a writer callback while it is sent, with chunked encoding.
+             */
+            public Builder withWriter(BodyWriter writer) {
+                return withStream(new WriterSource(writer));
+            }
+
             public HttpResponse build() {
-                return new HttpResponse(statusCode, Map.copyOf(headers), body);
+                return new HttpResponse(statusCode, Map.copyOf(headers), body, buffer, file, stream, streamLength, null);
             }
         }
     }
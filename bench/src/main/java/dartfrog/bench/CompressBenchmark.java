@@ -0,0 +1,49 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Accept-Encoding check made for every compressible response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressBenchmark {
+
+    private static final Map<String, String> ACCEPT_ENCODINGS = Map.of(
+            "curl", "gzip",
+            "browser", "gzip, deflate, br, zstd",
+            "weighted", "br;q=1.0, deflate;q=0.5, identity;q=0.3, gzip;q=0.1",
+            "identity", "identity");
+
+    @Param({"absent", "curl", "browser", "weighted", "identity"})
+    public String client;
+
+    private String acceptEncoding;
+
+    @Setup
+    public void setup() {
+        acceptEncoding = ACCEPT_ENCODINGS.get(client);
+    }
+
+    @Benchmark
+    public boolean shouldCompress() throws Throwable {
+        return (boolean) ServerInternals.SHOULD_COMPRESS.invokeExact((Object) acceptEncoding);
+    }
+}
@@ -0,0 +1,93 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures a GET of a file through handleFiles and sendResponse, raw and gzip-encoded, at
+ * several file sizes. The response is written to a DiscardChannel, so gzip bodies are
+ * compressed as part of the operation, as they are when sent to a client.
+ *
+ * The benchmark runs without --cache-bytes, --mmap-threshold or --precompress, so raw bodies
+ * are copied from the file on every request and gzip bodies are compressed on every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+
+    private static final String[] WORDS = {
+            "GET", "POST", "request", "response", "header", "body", "client", "server",
+            "connection", "keep-alive", "chunked", "gzip", "content", "length", "status", "path"};
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"identity", "gzip"})
+    public String encoding;
+
+    private Path directory;
+    private Map<String, String> headers;
+    private final DiscardChannel channel = new DiscardChannel();
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("dartfrog-bench");
+        Files.write(directory.resolve("page.txt"), text(size));
+        ServerInternals.setFileDirectory(directory.toString());
+        headers = encoding.equals("gzip") ? Map.of("accept-encoding", "gzip, deflate, br") : Map.of();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long get() throws Throwable {
+        Object response = (Object) ServerInternals.HANDLE_FILES.invokeExact((Object) "page.txt", (Object) "GET",
+                (Object) headers, (Object) null);
+        ServerInternals.SEND_RESPONSE.invokeExact(response, (Object) channel);
+        return channel.written();
+    }
+
+    /**
+     * Text that compresses about as well as typical markup or logs, from a fixed seed.
+     */
+    private static byte[] text(int size) {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,119 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte-level request head parser against the original BufferedReader-based one.
+ *
+ * Each invocation parses a connection's worth of pipelined requests, so per-connection reader
+ * setup is amortized and the score reflects the per-request parse cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final int REQUESTS_PER_CONNECTION = 64;
+
+    private static final Map<String, String> REQUESTS = Map.of(
+            "echo", "GET /echo/abc HTTP/1.1\r\n"
+                    + "Host: localhost:4221\r\n"
+                    + "User-Agent: curl/8.4.0\r\n"
+                    + "Accept: */*\r\n"
+                    + "\r\n",
+            "browser", "GET /files/index.html HTTP/1.1\r\n"
+                    + "Host: localhost:4221\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+                    + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+                    + "Accept-Encoding: gzip, deflate, br\r\n"
+                    + "Accept-Language: en-US,en;q=0.9\r\n"
+                    + "Cache-Control: max-age=0\r\n"
+                    + "Sec-Fetch-Dest: document\r\n"
+                    + "Sec-Fetch-Mode: navigate\r\n"
+                    + "Upgrade-Insecure-Requests: 1\r\n"
+                    + "\r\n");
+
+    @Param({"echo", "browser"})
+    public String request;
+
+    private byte[] connectionBytes;
+
+    @Setup
+    public void setup() {
+        connectionBytes = REQUESTS.get(request).repeat(REQUESTS_PER_CONNECTION).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_CONNECTION)
+    @SuppressWarnings("unchecked")
+    public void byteParser(Blackhole bh) throws Throwable {
+        Object reader = (Object) ServerInternals.NEW_REQUEST_READER.invokeExact((Object) new ByteArrayInputStream(connectionBytes));
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            Object head = (Object) ServerInternals.READ_HEAD.invokeExact(reader);
+            Map<String, String> headers = (Map<String, String>) (Object) ServerInternals.REQUEST_HEADERS.invokeExact(head);
+            // Touch the headers every request reads so lazy decoding is not flattered
+            bh.consume(headers.get("accept-encoding"));
+            bh.consume(headers.get("connection"));
+            bh.consume(head);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_CONNECTION)
+    public void readerParser(Blackhole bh) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(connectionBytes)));
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            Map<String, String> headers = legacyParseHead(reader, bh);
+            bh.consume(headers.get("accept-encoding"));
+            bh.consume(headers.get("connection"));
+        }
+    }
+
+    /**
+     * The request line and header loop of the original parseRequest, without its logging.
+     */
+    private static Map<String, String> legacyParseHead(BufferedReader in, Blackhole bh) throws IOException {
+        String requestLine = in.readLine();
+        String[] parts = requestLine.split(" ");
+        bh.consume(parts[0].toUpperCase(Locale.ROOT));
+        bh.consume(parts[1]);
+
+        Map<String, String> headers = new HashMap<>();
+        String headerLine;
+        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+            int colonIndex = headerLine.indexOf(':');
+            if (colonIndex > 0) {
+                String name = headerLine.substring(0, colonIndex).trim().toLowerCase(Locale.ROOT);
+                String value = headerLine.substring(colonIndex + 1).trim();
+                headers.put(name, value);
+            }
+        }
+        return headers;
+    }
+}
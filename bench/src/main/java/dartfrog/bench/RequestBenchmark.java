@@ -0,0 +1,109 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parseRequest over a connection's worth of pipelined requests read from memory,
+ * and routeRequest for each of the server's endpoints that does not touch the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private static final int REQUESTS_PER_CONNECTION = 64;
+
+    private static final Map<String, String> REQUESTS = Map.of(
+            "echo", "GET /echo/abc HTTP/1.1\r\n"
+                    + "Host: localhost:4221\r\n"
+                    + "User-Agent: curl/8.4.0\r\n"
+                    + "Accept: */*\r\n"
+                    + "\r\n",
+            "upload", "POST /files/upload.txt HTTP/1.1\r\n"
+                    + "Host: localhost:4221\r\n"
+                    + "User-Agent: curl/8.4.0\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Length: 512\r\n"
+                    + "\r\n"
+                    + "x".repeat(512),
+            "chunked", "POST /files/upload.txt HTTP/1.1\r\n"
+                    + "Host: localhost:4221\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "\r\n"
+                    + ("100\r\n" + "x".repeat(256) + "\r\n").repeat(2)
+                    + "0\r\n\r\n");
+
+    /**
+     * Pipelined requests of one kind, as a client would send them on one connection.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"echo", "upload", "chunked"})
+        public String request;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup() {
+            bytes = REQUESTS.get(request).repeat(REQUESTS_PER_CONNECTION).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * One parsed request for an in-memory endpoint.
+     */
+    @State(Scope.Thread)
+    public static class Routed {
+        @Param({"/", "/echo/abc", "/user-agent", "/missing"})
+        public String path;
+
+        Object request;
+
+        @Setup
+        public void setup() throws Throwable {
+            request = (Object) ServerInternals.NEW_HTTP_REQUEST.invokeExact((Object) "GET", (Object) path,
+                    (Object) Map.of("user-agent", "curl/8.4.0"), (Object) null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_CONNECTION)
+    public void parseRequest(Connection connection, Blackhole bh) throws Throwable {
+        Object reader = (Object) ServerInternals.NEW_REQUEST_READER.invokeExact((Object) new ByteArrayInputStream(connection.bytes));
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            Object request = (Object) ServerInternals.PARSE_REQUEST.invokeExact(reader);
+            InputStream body = (InputStream) (Object) ServerInternals.REQUEST_BODY.invokeExact(request);
+            if (body != null) {
+                // The connection loop drains every body before reading the next head
+                bh.consume(body.transferTo(OutputStream.nullOutputStream()));
+            }
+            bh.consume(request);
+        }
+    }
+
+    @Benchmark
+    public Object routeRequest(Routed routed) throws Throwable {
+        return (Object) ServerInternals.ROUTE_REQUEST.invokeExact(routed.request);
+    }
+}
@@ -0,0 +1,87 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures route lookup as the number of registered routes grows.
+ *
+ * Every route i is registered twice, as /api/v1/resource{i}/items and as
+ * /api/v1/resource{i}/items/{id}, and lookups target the last route registered, which is the
+ * worst case for a chain of startsWith checks like the one the router replaced. The chain's
+ * score grows linearly with routeCount; the trie's depends only on how many edges the path
+ * crosses, which here grows by one digit per tenfold increase.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int routeCount;
+
+    private Object router;
+    private String[] prefixes;
+    private final int[] bounds = new int[2];
+    private String literalPath;
+    private String paramPath;
+    private String missPath;
+
+    @Setup
+    public void setup() throws Throwable {
+        Class<?> handlerType = ServerInternals.nested("RouteHandler");
+        Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[] {handlerType},
+                (proxy, method, args) -> null);
+
+        router = (Object) ServerInternals.NEW_ROUTER.invokeExact();
+        prefixes = new String[routeCount];
+        for (int i = 0; i < routeCount; i++) {
+            prefixes[i] = "/api/v1/resource" + i + "/items";
+            ServerInternals.ROUTER_ADD.invokeExact(router, (Object) "GET", (Object) prefixes[i], handler);
+            ServerInternals.ROUTER_ADD.invokeExact(router, (Object) "GET", (Object) (prefixes[i] + "/{id}"), handler);
+        }
+        literalPath = prefixes[routeCount - 1];
+        paramPath = prefixes[routeCount - 1] + "/42";
+        missPath = "/api/v1/unknown/items";
+    }
+
+    @Benchmark
+    public Object trieLiteral() throws Throwable {
+        return (Object) ServerInternals.ROUTER_MATCH.invokeExact(router, (Object) literalPath, (Object) bounds);
+    }
+
+    @Benchmark
+    public Object trieParam() throws Throwable {
+        return (Object) ServerInternals.ROUTER_MATCH.invokeExact(router, (Object) paramPath, (Object) bounds);
+    }
+
+    @Benchmark
+    public Object trieMiss() throws Throwable {
+        return (Object) ServerInternals.ROUTER_MATCH.invokeExact(router, (Object) missPath, (Object) bounds);
+    }
+
+    @Benchmark
+    public int chainParam() {
+        for (int i = 0; i < prefixes.length; i++) {
+            if (paramPath.startsWith(prefixes[i]) && paramPath.startsWith("/", prefixes[i].length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
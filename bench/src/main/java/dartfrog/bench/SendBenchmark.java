@@ -0,0 +1,54 @@
+package dartfrog.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sendResponse for in-memory responses written to a DiscardChannel: head encoding
+ * into a pooled buffer plus the gathering write, without a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    @Param({"false", "true"})
+    public boolean preEncoded;
+
+    private Object response;
+    private final DiscardChannel channel = new DiscardChannel();
+
+    @Setup
+    public void setup() throws Throwable {
+        Object builder = (Object) ServerInternals.NEW_RESPONSE_BUILDER.invokeExact(200);
+        builder = (Object) ServerInternals.WITH_HEADER.invokeExact(builder, (Object) "Content-Type", (Object) "text/plain");
+        builder = (Object) ServerInternals.WITH_BODY.invokeExact(builder, (Object) new byte[bodySize]);
+        response = (Object) ServerInternals.BUILD.invokeExact(builder);
+        if (preEncoded) {
+            response = (Object) ServerInternals.PRE_ENCODED.invokeExact(response);
+        }
+    }
+
+    @Benchmark
+    public long sendResponse() throws Throwable {
+        ServerInternals.SEND_RESPONSE.invokeExact(response, (Object) channel);
+        return channel.written();
+    }
+}
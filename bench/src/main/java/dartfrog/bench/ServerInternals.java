@@ -0,0 +1,109 @@
+package dartfrog.bench;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Map;
+
+/**
+ * Method handles onto the server's private internals.
+ *
+ * Main lives in the default package, which classes in a named package (as JMH requires)
+ * cannot reference. Both sit in the unnamed module, so a private lookup can bind to
+ * Main's members once; every handle is erased to Object types so benchmarks can call
+ * invokeExact without naming Main's nested types.
+ */
+final class ServerInternals {
+
+    private static final MethodHandles.Lookup MAIN = privateLookup();
+
+    static final MethodHandle NEW_REQUEST_READER = constructor("RequestReader", InputStream.class);
+    static final MethodHandle READ_HEAD = virtual("RequestReader", "readHead", nested("HttpRequest"));
+    static final MethodHandle REQUEST_HEADERS = virtual("HttpRequest", "headers", Map.class);
+    static final MethodHandle PARSE_REQUEST = staticMethod("parseRequest", nested("HttpRequest"), nested("RequestReader"));
+    static final MethodHandle NEW_HTTP_REQUEST = constructor("HttpRequest",
+            String.class, String.class, Map.class, InputStream.class);
+    static final MethodHandle REQUEST_BODY = virtual("HttpRequest", "body", InputStream.class);
+    static final MethodHandle ROUTE_REQUEST = staticMethod("routeRequest", nested("HttpResponse"), nested("HttpRequest"));
+    static final MethodHandle HANDLE_FILES = staticMethod("handleFiles", nested("HttpResponse"),
+            String.class, String.class, Map.class, InputStream.class);
+    static final MethodHandle SHOULD_COMPRESS = staticMethod("shouldCompress", boolean.class, String.class);
+    static final MethodHandle SEND_RESPONSE = staticMethod("sendResponse", void.class,
+            nested("HttpResponse"), GatheringByteChannel.class);
+    static final MethodHandle NEW_RESPONSE_BUILDER = constructor("HttpResponse$Builder", int.class);
+    static final MethodHandle WITH_HEADER = virtual("HttpResponse$Builder", "withHeader", nested("HttpResponse$Builder"),
+            String.class, String.class);
+    static final MethodHandle WITH_BODY = virtual("HttpResponse$Builder", "withBody", nested("HttpResponse$Builder"),
+            byte[].class);
+    static final MethodHandle BUILD = virtual("HttpResponse$Builder", "build", nested("HttpResponse"));
+    static final MethodHandle PRE_ENCODED = virtual("HttpResponse", "preEncoded", nested("HttpResponse"));
+    static final MethodHandle NEW_ROUTER = constructor("Router");
+    static final MethodHandle ROUTER_ADD = virtual("Router", "add", void.class,
+            String.class, String.class, nested("RouteHandler"));
+    static final MethodHandle ROUTER_MATCH = virtual("Router", "match", nested("Router$Route"),
+            String.class, int[].class);
+
+    private ServerInternals() {
+    }
+
+    /**
+     * Points the file handler at a directory, as --directory does.
+     */
+    static void setFileDirectory(String directory) {
+        try {
+            MAIN.findStaticSetter(MAIN.lookupClass(), "fileDirectory", String.class).invoke(directory);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Class<?> nested(String simpleName) {
+        try {
+            return Class.forName("Main$" + simpleName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(String owner, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = nested(owner);
+            return erase(MethodHandles.privateLookupIn(type, MAIN)
+                    .findConstructor(type, MethodType.methodType(void.class, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle staticMethod(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return erase(MAIN.findStatic(MAIN.lookupClass(), name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle virtual(String owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = nested(owner);
+            return erase(MethodHandles.privateLookupIn(type, MAIN)
+                    .findVirtual(type, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        return handle.asType(handle.type().erase());
+    }
+
+    private static MethodHandles.Lookup privateLookup() {
+        try {
+            return MethodHandles.privateLookupIn(Class.forName("Main"), MethodHandles.lookup());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
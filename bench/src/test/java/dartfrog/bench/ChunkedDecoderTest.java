@@ -0,0 +1,169 @@
+package dartfrog.bench;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the incremental chunked body decoder shared by both engines.
+ */
+class ChunkedDecoderTest {
+
+    private static final MethodHandle NEW_DECODER = ServerInternals.constructor("ChunkedDecoder");
+    private static final MethodHandle DECODE = ServerInternals.virtual("ChunkedDecoder", "decode", int.class,
+            byte[].class, int.class, int.class, ByteBuffer.class);
+    private static final MethodHandle IS_DONE = ServerInternals.virtual("ChunkedDecoder", "isDone", boolean.class);
+
+    /**
+     * The result of feeding input to a fresh decoder.
+     */
+    private record Decoded(String body, int consumed, boolean done) {
+    }
+
+    @Test
+    void decodesChunks() throws Throwable {
+        String input = "4\r\nWiki\r\n5\r\npedia\r\n0\r\n\r\n";
+        assertEquals(new Decoded("Wikipedia", input.length(), true), decode(input));
+    }
+
+    @Test
+    void acceptsUppercaseHexAndBareLineFeeds() throws Throwable {
+        String body = "x".repeat(26);
+        String input = "1A\n" + body + "\n0\n\n";
+        assertEquals(new Decoded(body, input.length(), true), decode(input));
+    }
+
+    @Test
+    void skipsChunkExtensions() throws Throwable {
+        Decoded decoded = decode("4;name=value\r\nWiki\r\n5 ; quoted=\"a;b\"\r\npedia\r\n0;last\r\n\r\n");
+        assertEquals("Wikipedia", decoded.body());
+        assertTrue(decoded.done());
+    }
+
+    @Test
+    void skipsTrailers() throws Throwable {
+        Decoded decoded = decode("4\r\nWiki\r\n0\r\nExpires: never\r\nX-Checksum: abc\r\n\r\n");
+        assertEquals("Wiki", decoded.body());
+        assertTrue(decoded.done());
+    }
+
+    @Test
+    void leavesPipelinedBytesUnconsumed() throws Throwable {
+        String body = "3\r\nabc\r\n0\r\n\r\n";
+        Decoded decoded = decode(body + "GET / HTTP/1.1\r\n\r\n");
+        assertEquals(new Decoded("abc", body.length(), true), decoded);
+    }
+
+    @Test
+    void waitsForMoreInput() throws Throwable {
+        Decoded decoded = decode("4\r\nWi");
+        assertEquals(new Decoded("Wi", 5, false), decoded);
+    }
+
+    @Test
+    void decodesTheSameAcrossEverySplit() throws Throwable {
+        byte[] input = ascii("4;ext\r\nWiki\r\n5\r\npedia\r\n0\r\nTrailer: x\r\n\r\n");
+        for (int split = 0; split <= input.length; split++) {
+            Object decoder = NEW_DECODER.invoke();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int consumed = feed(decoder, input, 0, split, body);
+            assertEquals(split, consumed, "first piece, split at " + split);
+            consumed += feed(decoder, input, split, input.length, body);
+            assertEquals(input.length, consumed, "split at " + split);
+            assertEquals("Wikipedia", body.toString(StandardCharsets.US_ASCII), "split at " + split);
+            assertTrue((boolean) IS_DONE.invoke(decoder), "split at " + split);
+        }
+    }
+
+    @Test
+    void decodesOneByteAtATime() throws Throwable {
+        byte[] input = ascii("4\r\nWiki\r\n5\r\npedia\r\n0\r\n\r\n");
+        Object decoder = NEW_DECODER.invoke();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < input.length; i++) {
+            assertEquals(1, feed(decoder, input, i, i + 1, body));
+        }
+        assertEquals("Wikipedia", body.toString(StandardCharsets.US_ASCII));
+        assertTrue((boolean) IS_DONE.invoke(decoder));
+    }
+
+    @Test
+    void stopsWhenTheOutputIsFull() throws Throwable {
+        byte[] input = ascii("a\r\n0123456789\r\n0\r\n\r\n");
+        Object decoder = NEW_DECODER.invoke();
+        ByteBuffer small = ByteBuffer.allocate(4);
+        int consumed = (int) DECODE.invoke(decoder, input, 0, input.length, small);
+        assertEquals(3 + 4, consumed);
+        assertEquals("0123", new String(small.array(), StandardCharsets.US_ASCII));
+        assertFalse((boolean) IS_DONE.invoke(decoder));
+    }
+
+    @Test
+    void rejectsInvalidSize() {
+        assertThrows(ProtocolException.class, () -> decode("zz\r\nWiki\r\n0\r\n\r\n"));
+        assertThrows(ProtocolException.class, () -> decode("-4\r\nWiki\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsMissingSize() {
+        assertThrows(ProtocolException.class, () -> decode("\r\nWiki\r\n0\r\n\r\n"));
+        assertThrows(ProtocolException.class, () -> decode(";ext\r\nWiki\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsOversizedSize() {
+        assertThrows(ProtocolException.class, () -> decode("10000000000000000\r\n"));
+    }
+
+    @Test
+    void rejectsDataNotFollowedByLineEnd() {
+        assertThrows(ProtocolException.class, () -> decode("4\r\nWikipedia\r\n0\r\n\r\n"));
+        assertThrows(ProtocolException.class, () -> decode("4\r\nWiki\rX"));
+    }
+
+    @Test
+    void rejectsOverlongExtensionsAndTrailers() {
+        String longText = "x".repeat(65 * 1024);
+        assertThrows(ProtocolException.class, () -> decode("4;" + longText + "\r\n"));
+        assertThrows(ProtocolException.class, () -> decode("0\r\nX-Long: " + longText + "\r\n\r\n"));
+    }
+
+    private static Decoded decode(String input) throws Throwable {
+        byte[] bytes = ascii(input);
+        Object decoder = NEW_DECODER.invoke();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int consumed = feed(decoder, bytes, 0, bytes.length, body);
+        return new Decoded(body.toString(StandardCharsets.US_ASCII), consumed, (boolean) IS_DONE.invoke(decoder));
+    }
+
+    /**
+     * Decodes input[from, to) through a small output buffer, as the engines do, until the
+     * decoder stops consuming.
+     */
+    private static int feed(Object decoder, byte[] input, int from, int to, ByteArrayOutputStream body) throws Throwable {
+        ByteBuffer decoded = ByteBuffer.allocate(8);
+        int pos = from;
+        while (pos < to) {
+            int consumed = (int) DECODE.invoke(decoder, input, pos, to, decoded.clear());
+            body.write(decoded.array(), 0, decoded.position());
+            if (consumed == 0 && decoded.position() == 0) {
+                break;
+            }
+            pos += consumed;
+        }
+        return pos - from;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,111 @@
+package dartfrog.bench;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the lock-free log-linear histogram behind the latency metrics.
+ */
+class LogHistogramTest {
+
+    private static final MethodHandle NEW_HISTOGRAM = ServerInternals.constructor("LogHistogram");
+    private static final MethodHandle RECORD = ServerInternals.virtual("LogHistogram", "record", void.class, long.class);
+    private static final MethodHandle COUNT = ServerInternals.virtual("LogHistogram", "count", long.class);
+    private static final MethodHandle SUM = ServerInternals.virtual("LogHistogram", "sum", long.class);
+    private static final MethodHandle MAX = ServerInternals.virtual("LogHistogram", "max", long.class);
+    private static final MethodHandle VALUE_AT_PERCENTILE = ServerInternals.virtual("LogHistogram",
+            "valueAtPercentile", long.class, double.class);
+    private static final MethodHandle CUMULATIVE_COUNTS = ServerInternals.virtual("LogHistogram", "cumulativeCounts",
+            long[].class, long[].class);
+
+    @Test
+    void reportsZeroWhenEmpty() throws Throwable {
+        Object histogram = NEW_HISTOGRAM.invoke();
+        assertEquals(0, (long) COUNT.invoke(histogram));
+        assertEquals(0, (long) VALUE_AT_PERCENTILE.invoke(histogram, 99.0));
+        assertArrayEquals(new long[] {0, 0}, (long[]) CUMULATIVE_COUNTS.invoke(histogram, new long[] {10}));
+    }
+
+    @Test
+    void keepsSmallValuesExact() throws Throwable {
+        Object histogram = NEW_HISTOGRAM.invoke();
+        for (long value = 0; value < 100; value++) {
+            RECORD.invoke(histogram, value);
+        }
+        assertEquals(100, (long) COUNT.invoke(histogram));
+        assertEquals(4950, (long) SUM.invoke(histogram));
+        assertEquals(99, (long) MAX.invoke(histogram));
+        assertEquals(0, (long) VALUE_AT_PERCENTILE.invoke(histogram, 0.0));
+        assertEquals(49, (long) VALUE_AT_PERCENTILE.invoke(histogram, 50.0));
+        assertEquals(98, (long) VALUE_AT_PERCENTILE.invoke(histogram, 99.0));
+        assertEquals(99, (long) VALUE_AT_PERCENTILE.invoke(histogram, 100.0));
+    }
+
+    @Test
+    void clampsNegativeValuesToZero() throws Throwable {
+        Object histogram = NEW_HISTOGRAM.invoke();
+        RECORD.invoke(histogram, -5L);
+        assertEquals(0, (long) SUM.invoke(histogram));
+        assertEquals(0, (long) VALUE_AT_PERCENTILE.invoke(histogram, 100.0));
+    }
+
+    @Test
+    void reportsLargeValuesWithinBucketPrecision() throws Throwable {
+        List<Long> values = new ArrayList<>();
+        for (long value = 127; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            values.add(value);
+        }
+        values.add(Long.MAX_VALUE - 1);
+        for (long value : values) {
+            Object histogram = NEW_HISTOGRAM.invoke();
+            RECORD.invoke(histogram, value);
+            RECORD.invoke(histogram, Long.MAX_VALUE);
+            long reported = (long) VALUE_AT_PERCENTILE.invoke(histogram, 50.0);
+            assertTrue(reported >= value && reported - value <= value / 64, value + " reported as " + reported);
+        }
+    }
+
+    @Test
+    void countsValuesAtOrBelowEachBound() throws Throwable {
+        Object histogram = NEW_HISTOGRAM.invoke();
+        for (long value : new long[] {1, 10, 100, 1_000, 1_000_000}) {
+            RECORD.invoke(histogram, value);
+        }
+        long[] bounds = {0, 10, 99, 100, 5_000, 10_000_000};
+        assertArrayEquals(new long[] {0, 2, 2, 3, 4, 5, 5}, (long[]) CUMULATIVE_COUNTS.invoke(histogram, bounds));
+    }
+
+    @Test
+    void recordsFromManyThreads() throws Throwable {
+        Object histogram = NEW_HISTOGRAM.invoke();
+        int threads = 8;
+        int perThread = 50_000;
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            recorders.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (long value = 1; value <= perThread; value++) {
+                        RECORD.invoke(histogram, value);
+                    }
+                } catch (Throwable e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        assertEquals((long) threads * perThread, (long) COUNT.invoke(histogram));
+        assertEquals((long) threads * perThread * (perThread + 1) / 2, (long) SUM.invoke(histogram));
+        assertEquals(perThread, (long) MAX.invoke(histogram));
+        long[] cumulative = (long[]) CUMULATIVE_COUNTS.invoke(histogram, new long[] {Long.MAX_VALUE});
+        assertEquals((long) threads * perThread, cumulative[0]);
+    }
+}
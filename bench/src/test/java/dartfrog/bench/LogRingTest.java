@@ -0,0 +1,126 @@
+package dartfrog.bench;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the bounded multi-producer, single-consumer ring the async logs queue through.
+ */
+class LogRingTest {
+
+    private static final MethodHandle NEW_RING = ServerInternals.constructor("LogRing", int.class);
+    private static final MethodHandle OFFER = ServerInternals.virtual("LogRing", "offer", boolean.class,
+            ServerInternals.nested("LogEntry"));
+    private static final MethodHandle POLL = ServerInternals.virtual("LogRing", "poll", ServerInternals.nested("LogEntry"));
+    private static final MethodHandle IS_EMPTY = ServerInternals.virtual("LogRing", "isEmpty", boolean.class);
+    private static final MethodHandle NEW_MESSAGE = ServerInternals.constructor("LogMessage",
+            long.class, ServerInternals.nested("LogLevel"), String.class);
+    private static final MethodHandle MESSAGE_TEXT = ServerInternals.virtual("LogMessage", "text", String.class);
+    private static final Object INFO = ServerInternals.nested("LogLevel").getEnumConstants()[2];
+
+    @Test
+    void returnsEntriesInOrder() throws Throwable {
+        Object ring = NEW_RING.invoke(8);
+        assertTrue((boolean) IS_EMPTY.invoke(ring));
+        assertNull(POLL.invoke(ring));
+        for (String text : new String[] {"a", "b", "c"}) {
+            assertTrue((boolean) OFFER.invoke(ring, message(text)));
+        }
+        assertFalse((boolean) IS_EMPTY.invoke(ring));
+        assertEquals("a", text(POLL.invoke(ring)));
+        assertEquals("b", text(POLL.invoke(ring)));
+        assertEquals("c", text(POLL.invoke(ring)));
+        assertNull(POLL.invoke(ring));
+        assertTrue((boolean) IS_EMPTY.invoke(ring));
+    }
+
+    @Test
+    void refusesEntriesWhenFull() throws Throwable {
+        Object ring = NEW_RING.invoke(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue((boolean) OFFER.invoke(ring, message("m" + i)));
+        }
+        assertFalse((boolean) OFFER.invoke(ring, message("dropped")));
+        assertEquals("m0", text(POLL.invoke(ring)));
+        assertTrue((boolean) OFFER.invoke(ring, message("m4")));
+        assertFalse((boolean) OFFER.invoke(ring, message("dropped")));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("m" + i, text(POLL.invoke(ring)));
+        }
+        assertNull(POLL.invoke(ring));
+    }
+
+    @Test
+    void reusesSlotsOverManyLaps() throws Throwable {
+        Object ring = NEW_RING.invoke(2);
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue((boolean) OFFER.invoke(ring, message("m" + i)));
+            assertEquals("m" + i, text(POLL.invoke(ring)));
+        }
+        assertTrue((boolean) IS_EMPTY.invoke(ring));
+    }
+
+    @Test
+    void keepsEachProducersOrderUnderContention() throws Throwable {
+        Object ring = NEW_RING.invoke(64);
+        int producers = 4;
+        int perProducer = 5_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        Object entry = message(producer + ":" + i);
+                        while (!(boolean) OFFER.invoke(ring, entry)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (Throwable e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        }
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            Object entry = POLL.invoke(ring);
+            if (entry == null) {
+                if (threads.stream().noneMatch(Thread::isAlive) && (boolean) IS_EMPTY.invoke(ring)) {
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            String[] parts = text(entry).split(":");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(next[producer]++, Integer.parseInt(parts[1]), "producer " + producer);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int[] expected = new int[producers];
+        Arrays.fill(expected, perProducer);
+        assertArrayEquals(expected, next);
+        assertNull(POLL.invoke(ring));
+    }
+
+    private static Object message(String text) throws Throwable {
+        return NEW_MESSAGE.invoke(0L, INFO, text);
+    }
+
+    private static String text(Object message) throws Throwable {
+        return (String) MESSAGE_TEXT.invoke(message);
+    }
+}
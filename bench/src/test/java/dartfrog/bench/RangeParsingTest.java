@@ -0,0 +1,112 @@
+package dartfrog.bench;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests Range header parsing against a 1000-byte file unless stated otherwise.
+ */
+class RangeParsingTest {
+
+    private static final MethodHandle PARSE_RANGES = ServerInternals.staticMethod("parseRanges", List.class,
+            String.class, long.class);
+    private static final MethodHandle FIRST = ServerInternals.virtual("ByteRange", "first", long.class);
+    private static final MethodHandle LAST = ServerInternals.virtual("ByteRange", "last", long.class);
+    private static final MethodHandle CONTENT_RANGE = ServerInternals.virtual("ByteRange", "contentRange",
+            String.class, long.class);
+
+    @Test
+    void parsesAClosedRange() throws Throwable {
+        assertEquals(List.of("0-499"), parse("bytes=0-499", 1000));
+        assertEquals(List.of("999-999"), parse("bytes=999-999", 1000));
+    }
+
+    @Test
+    void clampsTheLastByteToTheFile() throws Throwable {
+        assertEquals(List.of("990-999"), parse("bytes=990-2000", 1000));
+    }
+
+    @Test
+    void parsesAnOpenEndedRange() throws Throwable {
+        assertEquals(List.of("900-999"), parse("bytes=900-", 1000));
+        assertEquals(List.of("0-999"), parse("bytes=0-", 1000));
+    }
+
+    @Test
+    void parsesASuffixRange() throws Throwable {
+        assertEquals(List.of("500-999"), parse("bytes=-500", 1000));
+        assertEquals(List.of("0-999"), parse("bytes=-5000", 1000));
+    }
+
+    @Test
+    void parsesMultipleRangesInOrder() throws Throwable {
+        assertEquals(List.of("500-599", "0-0", "999-999"), parse("bytes=500-599, 0-0 ,-1", 1000));
+        assertEquals(List.of("0-1"), parse("bytes=0-1,", 1000));
+    }
+
+    @Test
+    void dropsUnsatisfiableRanges() throws Throwable {
+        assertEquals(List.of("0-9"), parse("bytes=0-9,1000-1100", 1000));
+        assertEquals(List.of(), parse("bytes=1000-", 1000));
+        assertEquals(List.of(), parse("bytes=-0", 1000));
+        assertEquals(List.of(), parse("bytes=-10", 0));
+        assertEquals(List.of(), parse("bytes=0-", 0));
+    }
+
+    @Test
+    void acceptsTheUnitInAnyCase() throws Throwable {
+        assertEquals(List.of("0-1"), parse("Bytes=0-1", 1000));
+    }
+
+    @Test
+    void ignoresOtherUnits() throws Throwable {
+        assertNull(parse("items=0-1", 1000));
+        assertNull(parse("0-1", 1000));
+    }
+
+    @Test
+    void rejectsMalformedRanges() throws Throwable {
+        assertNull(parse("bytes=", 1000));
+        assertNull(parse("bytes=5", 1000));
+        assertNull(parse("bytes=5-1", 1000));
+        assertNull(parse("bytes=a-b", 1000));
+        assertNull(parse("bytes=--1", 1000));
+        assertNull(parse("bytes=-+1", 1000));
+        assertNull(parse("bytes=+0-1", 1000));
+        assertNull(parse("bytes=99999999999999999999-", 1000));
+    }
+
+    @Test
+    void rejectsTooManyRanges() throws Throwable {
+        assertEquals(16, parse("bytes=" + "0-0,".repeat(15) + "0-0", 1000).size());
+        assertNull(parse("bytes=" + "0-0,".repeat(16) + "0-0", 1000));
+    }
+
+    @Test
+    void formatsContentRange() throws Throwable {
+        List<?> ranges = (List<?>) PARSE_RANGES.invoke("bytes=-500", 1000L);
+        assertEquals("bytes 500-999/1000", (String) CONTENT_RANGE.invoke(ranges.get(0), 1000L));
+    }
+
+    /**
+     * Parses a header and renders each range as "first-last", or returns null if the header is
+     * ignored.
+     */
+    private static List<String> parse(String header, long size) throws Throwable {
+        List<?> ranges = (List<?>) PARSE_RANGES.invoke(header, size);
+        if (ranges == null) {
+            return null;
+        }
+        List<String> rendered = new ArrayList<>();
+        for (Object range : ranges) {
+            rendered.add((long) FIRST.invoke(range) + "-" + (long) LAST.invoke(range));
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,188 @@
+package dartfrog.bench;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests route matching in the trie router: literal edges, {name} and {*name} captures, their
+ * priority and backtracking, and the 404 and 405 responses.
+ */
+class RouterTest {
+
+    private static final MethodHandle ROUTE = ServerInternals.virtual("Router", "route",
+            ServerInternals.nested("HttpResponse"), ServerInternals.nested("HttpRequest"));
+    private static final MethodHandle PARAM = ServerInternals.virtual("PathParams", "get", String.class, String.class);
+    private static final MethodHandle STATUS_CODE = ServerInternals.virtual("HttpResponse", "statusCode", int.class);
+    private static final MethodHandle RESPONSE_HEADERS = ServerInternals.virtual("HttpResponse", "headers", Map.class);
+
+    private Object router;
+    private String matchedPattern;
+    private Object matchedParams;
+
+    @BeforeEach
+    void newRouter() throws Throwable {
+        router = ServerInternals.NEW_ROUTER.invoke();
+    }
+
+    @Test
+    void matchesLiteralsExactly() throws Throwable {
+        add("GET", "/");
+        add("GET", "/echo");
+        add("GET", "/user-agent");
+        assertEquals("/", route("GET", "/"));
+        assertEquals("/echo", route("GET", "/echo"));
+        assertEquals("/user-agent", route("GET", "/user-agent"));
+        assertEquals("404", route("GET", "/echo/"));
+        assertEquals("404", route("GET", "/ech"));
+        assertEquals("404", route("GET", "/user-agentx"));
+        assertEquals("404", route("GET", ""));
+    }
+
+    @Test
+    void splitsSharedPrefixes() throws Throwable {
+        add("GET", "/teams");
+        add("GET", "/test");
+        add("GET", "/team");
+        add("GET", "/t");
+        assertEquals("/teams", route("GET", "/teams"));
+        assertEquals("/test", route("GET", "/test"));
+        assertEquals("/team", route("GET", "/team"));
+        assertEquals("/t", route("GET", "/t"));
+        assertEquals("404", route("GET", "/te"));
+        assertEquals("404", route("GET", "/tea"));
+    }
+
+    @Test
+    void capturesOneSegment() throws Throwable {
+        add("GET", "/users/{id}/posts");
+        assertEquals("/users/{id}/posts", route("GET", "/users/42/posts"));
+        assertEquals("42", param("id"));
+        assertEquals("404", route("GET", "/users//posts"));
+        assertEquals("404", route("GET", "/users/4/2/posts"));
+        assertEquals("404", route("GET", "/users/42"));
+    }
+
+    @Test
+    void capturesSeveralSegments() throws Throwable {
+        add("GET", "/{owner}/repos/{repo}");
+        assertEquals("/{owner}/repos/{repo}", route("GET", "/octo/repos/dartfrog"));
+        assertEquals("octo", param("owner"));
+        assertEquals("dartfrog", param("repo"));
+    }
+
+    @Test
+    void capturesTheRestOfThePath() throws Throwable {
+        add("GET", "/files/{*name}");
+        assertEquals("/files/{*name}", route("GET", "/files/docs/a b.txt"));
+        assertEquals("docs/a b.txt", param("name"));
+        assertEquals("/files/{*name}", route("GET", "/files//x/"));
+        assertEquals("/x/", param("name"));
+        assertEquals("404", route("GET", "/files/"));
+        assertEquals("404", route("GET", "/files"));
+    }
+
+    @Test
+    void prefersLiteralThenSegmentThenRest() throws Throwable {
+        add("GET", "/a/{*rest}");
+        add("GET", "/a/{id}");
+        add("GET", "/a/new");
+        assertEquals("/a/new", route("GET", "/a/new"));
+        assertEquals("/a/{id}", route("GET", "/a/newer"));
+        assertEquals("newer", param("id"));
+        assertEquals("/a/{*rest}", route("GET", "/a/new/x"));
+        assertEquals("new/x", param("rest"));
+    }
+
+    @Test
+    void backtracksWhenABranchFailsLater() throws Throwable {
+        add("GET", "/a/new");
+        add("GET", "/a/{id}/edit");
+        add("GET", "/a/{*rest}");
+        assertEquals("/a/{id}/edit", route("GET", "/a/new/edit"));
+        assertEquals("new", param("id"));
+        assertEquals("/a/{*rest}", route("GET", "/a/new/view"));
+        assertEquals("new/view", param("rest"));
+    }
+
+    @Test
+    void indexesCharactersOutsideAscii() throws Throwable {
+        add("GET", "/über");
+        add("GET", "/ü/{id}");
+        assertEquals("/über", route("GET", "/über"));
+        assertEquals("/ü/{id}", route("GET", "/ü/1"));
+        assertEquals("1", param("id"));
+        assertEquals("404", route("GET", "/üb"));
+    }
+
+    @Test
+    void answersOtherMethodsWith405() throws Throwable {
+        add("POST", "/x/{id}");
+        add("GET", "/x/{id}");
+        add("DELETE", "/x/{id}");
+        assertEquals("/x/{id}", route("POST", "/x/1"));
+        assertEquals("405 Allow: DELETE, GET, POST", route("PUT", "/x/1"));
+        assertEquals("404", route("PUT", "/y/1"));
+    }
+
+    @Test
+    void rejectsMalformedPatterns() {
+        for (String pattern : new String[] {"echo", "/{}", "/{*}", "/{id", "/a{id}", "/{id}x", "/{*rest}/more",
+                "/{id}/{id}"}) {
+            assertThrows(IllegalArgumentException.class, () -> add("GET", pattern), pattern);
+        }
+    }
+
+    @Test
+    void rejectsRenamedParameters() throws Throwable {
+        add("GET", "/u/{id}");
+        add("PUT", "/u/{id}");
+        assertThrows(IllegalArgumentException.class, () -> add("POST", "/u/{name}"));
+    }
+
+    /**
+     * Registers a handler that records which pattern matched and what it captured.
+     */
+    private void add(String method, String pattern) throws Throwable {
+        Class<?> handlerType = ServerInternals.nested("RouteHandler");
+        Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[] {handlerType},
+                (proxy, called, args) -> {
+                    if (!called.getName().equals("handle")) {
+                        throw new UnsupportedOperationException(called.getName());
+                    }
+                    matchedPattern = pattern;
+                    matchedParams = args[1];
+                    return null;
+                });
+        ServerInternals.ROUTER_ADD.invoke(router, method, pattern, handler);
+    }
+
+    /**
+     * Routes a request and returns the pattern that handled it, "404", or "405" with its Allow
+     * header.
+     */
+    private String route(String method, String path) throws Throwable {
+        matchedPattern = null;
+        matchedParams = null;
+        Object request = ServerInternals.NEW_HTTP_REQUEST.invoke(method, path, Map.of(), null);
+        Object response = ROUTE.invoke(router, request);
+        if (response == null) {
+            return matchedPattern;
+        }
+        int status = (int) STATUS_CODE.invoke(response);
+        if (status == 405) {
+            return "405 Allow: " + ((Map<?, ?>) RESPONSE_HEADERS.invoke(response)).get("Allow");
+        }
+        return String.valueOf(status);
+    }
+
+    private String param(String name) throws Throwable {
+        return (String) PARAM.invoke(matchedParams, name);
+    }
+}